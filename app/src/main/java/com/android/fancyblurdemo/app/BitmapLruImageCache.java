@@ -1,18 +1,76 @@
 package com.android.fancyblurdemo.app;
 
 import android.graphics.Bitmap;
-import android.util.LruCache;
+import android.support.v4.util.LruCache;
 
 import com.android.fancyblurdemo.volley.toolbox.ImageLoader;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
 
 /**
  * Created by kevin.marlow on 2/21/14.
  */
-public class BitmapLruImageCache extends LruCache<String, Bitmap> implements ImageLoader.ImageCache {
+public class BitmapLruImageCache extends LruCache<String, Bitmap>
+        implements ImageLoader.ImageCache, MemoryPressureManager.Trimmable {
+
+    /** Lookups between two decisions about the size. */
+    private static final int WINDOW_LOOKUPS = 64;
+
+    /** Fraction of the range between min and max sizes to grow by at once. */
+    private static final int GROW_STEPS = 8;
+
+    /** Fraction of the range between min and max sizes to shrink by at once. */
+    private static final int SHRINK_STEPS = 32;
+
+    /** The size the cache never shrinks below. */
+    private final int mMinSize;
+
+    /**
+     * The size the cache currently keeps to, between {@link #mMinSize} and {@link #maxSize()}.
+     * Guarded by this.
+     */
+    private int mTargetSize;
+
+    /**
+     * Recently evicted keys and their sizes, oldest first. A miss on one of these is a hit the
+     * cache would have had if it were bigger. Holds no more bytes than the cache could grow by.
+     * Guarded by this.
+     */
+    private final LinkedHashMap<String, Integer> mGhosts = new LinkedHashMap<String, Integer>();
+    private int mGhostSize = 0;
+
+    /** Counts for the current window. Guarded by this. */
+    private int mWindowLookups = 0;
+    private int mWindowGhostHits = 0;
 
+    /** Lookups that missed but were in the ghost list, since the cache was created. Guarded by this. */
+    private int mGhostHitCount = 0;
+
+    /**
+     * Creates a cache of a fixed size.
+     * @param maxSize The size of the cache, in bytes.
+     */
     public BitmapLruImageCache(int maxSize) {
+        this(maxSize, maxSize, maxSize);
+    }
+
+    /**
+     * Creates a cache that sizes itself to the images it is asked for. It starts at
+     * {@code initialSize}. It grows while lookups miss on images it evicted recently, and it
+     * shrinks slowly while they do not, so it settles at about the size of the working set.
+     * @param initialSize The starting size, in bytes.
+     * @param minSize The smallest size, in bytes.
+     * @param maxSize The largest size, in bytes.
+     */
+    public BitmapLruImageCache(int initialSize, int minSize, int maxSize) {
         super(maxSize);
+        if (minSize > maxSize || initialSize < minSize || initialSize > maxSize) {
+            throw new IllegalArgumentException("Sizes must be ordered min <= initial <= max");
+        }
+        mMinSize = minSize;
+        mTargetSize = initialSize;
     }
 
     @Override
@@ -20,13 +78,140 @@ public class BitmapLruImageCache extends LruCache<String, Bitmap> implements Ima
         return value.getByteCount();
     }
 
+    @Override
+    protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+        if (!evicted) {
+            return;
+        }
+        synchronized (this) {
+            int headroom = maxSize() - mTargetSize;
+            int size = sizeOf(key, oldValue);
+            if (size > headroom) {
+                // Growing to the max would not have kept it either.
+                return;
+            }
+            mGhosts.put(key, size);
+            mGhostSize += size;
+            trimGhosts(headroom);
+        }
+    }
+
     @Override
     public Bitmap getBitmap(String url) {
-        return get(url);
+        Bitmap bitmap = get(url);
+        int trimTo = -1;
+        synchronized (this) {
+            if (bitmap == null) {
+                Integer ghost = mGhosts.remove(url);
+                if (ghost != null) {
+                    mGhostSize -= ghost;
+                    mWindowGhostHits++;
+                    mGhostHitCount++;
+                }
+            }
+            if (++mWindowLookups >= WINDOW_LOOKUPS) {
+                trimTo = adjustTargetSize();
+            }
+        }
+        if (trimTo >= 0) {
+            trimToSize(trimTo);
+        }
+        return bitmap;
     }
 
     @Override
     public void putBitmap(String url, Bitmap bitmap) {
+        int targetSize;
+        synchronized (this) {
+            Integer ghost = mGhosts.remove(url);
+            if (ghost != null) {
+                mGhostSize -= ghost;
+            }
+            targetSize = mTargetSize;
+        }
         put(url, bitmap);
+        if (size() > targetSize) {
+            trimToSize(targetSize);
+        }
+    }
+
+    /**
+     * Grows the target size if the window saw misses on recently evicted images, and shrinks
+     * it a little if it saw none, then starts a new window. Must hold the lock.
+     * @return The size to trim to, or -1 if the target did not shrink.
+     */
+    private int adjustTargetSize() {
+        int range = maxSize() - mMinSize;
+        int trimTo = -1;
+        if (mWindowGhostHits > 0) {
+            mTargetSize = Math.min(maxSize(), mTargetSize + Math.max(1, range / GROW_STEPS));
+            trimGhosts(maxSize() - mTargetSize);
+        } else if (mTargetSize > mMinSize) {
+            mTargetSize = Math.max(mMinSize, mTargetSize - Math.max(1, range / SHRINK_STEPS));
+            trimTo = mTargetSize;
+        }
+        mWindowLookups = 0;
+        mWindowGhostHits = 0;
+        return trimTo;
+    }
+
+    /**
+     * Forgets the oldest ghosts until they fit in {@code maxGhostSize} bytes. Must hold the lock.
+     */
+    private void trimGhosts(int maxGhostSize) {
+        Iterator<Integer> oldest = mGhosts.values().iterator();
+        while (mGhostSize > maxGhostSize && oldest.hasNext()) {
+            mGhostSize -= oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Returns the size the cache currently keeps to, in bytes.
+     */
+    public synchronized int getTargetSize() {
+        return mTargetSize;
+    }
+
+    /**
+     * Returns the smallest size the cache shrinks to, in bytes.
+     */
+    public int getMinSize() {
+        return mMinSize;
+    }
+
+    /**
+     * Returns the number of misses on images the cache evicted recently; each would have
+     * been a hit in a bigger cache.
+     */
+    public synchronized int getGhostHitCount() {
+        return mGhostHitCount;
+    }
+
+    /**
+     * Evicts the least recently used bitmaps until the cache holds no more than its share of
+     * its target size at this trim level. Images evicted this way are not remembered as
+     * ghosts, so asking for them again does not grow the cache back.
+     * @return The bytes evicted.
+     */
+    @Override
+    public long onTrimMemory(int level) {
+        int before = size();
+        trimToSize((int) (getTargetSize() * MemoryPressureManager.getRetainFraction(level)));
+        synchronized (this) {
+            mGhosts.clear();
+            mGhostSize = 0;
+        }
+        return before - size();
+    }
+
+    /**
+     * Returns the sizes and counters of the cache, for logging. ({@link LruCache#toString()}
+     * is final.)
+     */
+    public synchronized String getStatsString() {
+        return "size=" + size() + " target=" + mTargetSize + " min=" + mMinSize + " max=" + maxSize()
+                + " hits=" + hitCount() + " misses=" + missCount() + " ghostHits=" + mGhostHitCount
+                + " evictions=" + evictionCount();
     }
 }
@@ -9,13 +9,20 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.android.fancyblurdemo.app.imageblur.BlurError;
+import com.android.fancyblurdemo.app.imageblur.BlurRequest;
+import com.android.fancyblurdemo.app.imageblur.BlurSpec;
 import com.android.fancyblurdemo.app.imageblur.ImageBlurrer;
+import com.android.fancyblurdemo.volley.Cache;
 
 /**
  * Created by kevin.marlow on 3/26/14.
  */
 public class BlurImageView extends ImageView {
 
+    /** The default blur: today's blur as level 0 of a three level pyramid. */
+    public static final BlurSpec DEFAULT_BLUR_SPEC =
+            new BlurSpec(8, 2, Bitmap.Config.ARGB_8888, BlurSpec.ALGORITHM_STACK, 3);
+
     /** Local copy of the ImageBlurrer. */
     private ImageBlurrer mImageBlurrer;
 
@@ -25,6 +32,21 @@ public class BlurImageView extends ImageView {
     /** Current BlurredImageContainer. */
     private ImageBlurrer.BlurredImageContainer mBlurredImageContainer;
 
+    /** How the image is blurred. */
+    private BlurSpec mBlurSpec = DEFAULT_BLUR_SPEC;
+
+    /** Page position of the image, used to blur the pages nearest the screen first. */
+    private int mPosition = BlurRequest.NO_POSITION;
+
+    /** Volley cache holding the encoded image, if it should be blurred from there. */
+    private Cache mEncodedImageCache;
+
+    /** Current blur amount, applied to every pyramid this view shows. */
+    private float mBlurAmount = 1;
+
+    /** The pyramid currently shown, if any. */
+    private BlurPyramidDrawable mPyramidDrawable;
+
     public BlurImageView(Context context) {
         this(context, null);
     }
@@ -57,6 +79,65 @@ public class BlurImageView extends ImageView {
         loadImageIfNecessary(bitmapToBlur, false);
     }
 
+    /**
+     * Sets how the image is blurred. Takes effect with the next call to
+     * {@link #setImageToBlur(Bitmap, String, ImageBlurrer)}.
+     *
+     * @param blurSpec The blur spec.
+     */
+    public void setBlurSpec(BlurSpec blurSpec) {
+        mBlurSpec = blurSpec;
+    }
+
+    /**
+     * Blurs the encoded image Volley cached for the request url rather than the decoded
+     * bitmap, which saves decoding and then downsizing the full size image. The bitmap is
+     * still blurred if the entry has been evicted. Takes effect with the next call to
+     * {@link #setImageToBlur(Bitmap, String, ImageBlurrer)}.
+     *
+     * @param cache The cache of the Volley request queue, or null to blur the bitmap.
+     */
+    public void setEncodedImageCache(Cache cache) {
+        mEncodedImageCache = cache;
+    }
+
+    /**
+     * Sets the page position of the image, so its blur is scheduled by its distance from
+     * the page on screen. Takes effect with the next call to
+     * {@link #setImageToBlur(Bitmap, String, ImageBlurrer)}.
+     *
+     * @param position The page position, or {@link BlurRequest#NO_POSITION}.
+     */
+    public void setPosition(int position) {
+        mPosition = position;
+    }
+
+    /**
+     * Sets how much blur to show, by interpolating between the levels of the blur pyramid.
+     *
+     * @param blurAmount Between 0 for none and 1 for the strongest level.
+     */
+    public void setBlurAmount(float blurAmount) {
+        mBlurAmount = blurAmount;
+        if (mPyramidDrawable != null) {
+            mPyramidDrawable.setBlurAmount(blurAmount);
+        }
+    }
+
+    /**
+     * Shows the given pyramid atlas at the current blur amount.
+     */
+    private void setPyramidBitmap(Bitmap atlas) {
+        if (atlas == null) {
+            mPyramidDrawable = null;
+            setImageDrawable(null);
+            return;
+        }
+        mPyramidDrawable = new BlurPyramidDrawable(atlas, mBlurSpec.pyramidLevels);
+        mPyramidDrawable.setBlurAmount(mBlurAmount);
+        setImageDrawable(mPyramidDrawable);
+    }
+
     /**
      * Loads the image for the view if it isn't already loaded.
      * @param isInLayoutPass True if this was invoked from a layout pass, false otherwise.
@@ -82,12 +163,12 @@ public class BlurImageView extends ImageView {
         // if there was an old request in this view, check if it needs to be canceled.
         if (mBlurredImageContainer != null && mBlurredImageContainer.getBitmap() != null) {
             // if the request is from the same URL, return.
-            setImageBitmap(bitmap);
+            setPyramidBitmap(mBlurredImageContainer.getBitmap());
             return;
         }
 
         if (mImageBlurrer != null && !TextUtils.isEmpty(mRequestUrl)) {
-            mBlurredImageContainer = mImageBlurrer.blur(bitmap, mRequestUrl, new ImageBlurrer.ImageBlurListener() {
+            ImageBlurrer.ImageBlurListener listener = new ImageBlurrer.ImageBlurListener() {
                 @Override
                 public void onBlurResponse(final ImageBlurrer.BlurredImageContainer blurredResponse, boolean isImmediate) {
 
@@ -102,7 +183,7 @@ public class BlurImageView extends ImageView {
                     }
 
                     if (blurredResponse.getBitmap() != null) {
-                        setImageBitmap(blurredResponse.getBitmap());
+                        setPyramidBitmap(blurredResponse.getBitmap());
                     }
                 }
 
@@ -110,7 +191,12 @@ public class BlurImageView extends ImageView {
                 public void onErrorResponse(BlurError error) {
                     // Do nothing.
                 }
-            });
+            };
+            if (mEncodedImageCache != null) {
+                mBlurredImageContainer = mImageBlurrer.blur(bitmap, mEncodedImageCache, mRequestUrl, mBlurSpec, mPosition, listener);
+            } else {
+                mBlurredImageContainer = mImageBlurrer.blur(bitmap, mRequestUrl, mBlurSpec, mPosition, listener);
+            }
         } else {
             Log.i("NULL", mImageBlurrer == null ? "ImageBlurrer is null." : "RequestUrl is null.");
         }
@@ -122,7 +208,7 @@ public class BlurImageView extends ImageView {
             // If the view was bound to a blur request, cancel it and clear
             // out the image from the view.
             mBlurredImageContainer.cancelRequest();
-            setImageBitmap(null);
+            setPyramidBitmap(null);
             // also clear out the container so we can reload the image if necessary.
             mBlurredImageContainer = null;
         }
@@ -0,0 +1,107 @@
+package com.android.fancyblurdemo.app;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+import com.android.fancyblurdemo.blurkernel.BlurPyramid;
+
+/**
+ * Draws a blur pyramid atlas at any blur amount between sharp and the strongest level.
+ *
+ * The amount is spread evenly over the levels. Between two levels the weaker one is
+ * drawn opaque and the stronger one faded in on top of it; below level 0 the level is
+ * faded in over whatever lies beneath the drawable, which is the sharp image.
+ */
+public class BlurPyramidDrawable extends Drawable {
+
+    private final Bitmap mAtlas;
+    private final BlurPyramid mPyramid;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSrc = new Rect();
+
+    /** Blur amount between 0 (not drawn) and 1 (strongest level). */
+    private float mBlurAmount = 1;
+
+    /** Overall alpha set through {@link #setAlpha(int)}. */
+    private int mAlpha = 255;
+
+    /**
+     * @param atlas The atlas delivered for a pyramid request.
+     * @param levels The number of levels that were requested.
+     */
+    public BlurPyramidDrawable(Bitmap atlas, int levels) {
+        mAtlas = atlas;
+        BlurPyramid pyramid = BlurPyramid.fromAtlas(atlas.getWidth(), atlas.getHeight(), levels);
+        // Images too small to hold a full pyramid are shown as a single level.
+        mPyramid = pyramid != null ? pyramid : BlurPyramid.layout(atlas.getWidth(), atlas.getHeight(), 1);
+    }
+
+    /**
+     * Sets how much blur to show.
+     *
+     * @param blurAmount Between 0 for none and 1 for the strongest level.
+     */
+    public void setBlurAmount(float blurAmount) {
+        blurAmount = Math.max(0, Math.min(1, blurAmount));
+        if (blurAmount != mBlurAmount) {
+            mBlurAmount = blurAmount;
+            invalidateSelf();
+        }
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        float position = mBlurAmount * mPyramid.levels;
+        if (position <= 0 || mAlpha == 0) {
+            return;
+        }
+        int upper = Math.min((int) Math.ceil(position), mPyramid.levels) - 1;
+        float fraction = position - upper;
+        if (upper > 0) {
+            drawLevel(canvas, upper - 1, mAlpha);
+        }
+        drawLevel(canvas, upper, (int) (mAlpha * fraction));
+    }
+
+    private void drawLevel(Canvas canvas, int level, int alpha) {
+        int left = mPyramid.getLeft(level);
+        int top = mPyramid.getTop(level);
+        mSrc.set(left, top, left + mPyramid.getWidth(level), top + mPyramid.getHeight(level));
+        mPaint.setAlpha(alpha);
+        canvas.drawBitmap(mAtlas, mSrc, getBounds(), mPaint);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mPyramid.getWidth(0);
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mPyramid.getHeight(0);
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        if (alpha != mAlpha) {
+            mAlpha = alpha;
+            invalidateSelf();
+        }
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter cf) {
+        mPaint.setColorFilter(cf);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+}
@@ -143,6 +143,7 @@ public class MainActivity extends FragmentActivity {
         mViewPager = (EdgeEffectViewPager) findViewById(R.id.pager);
         mViewPager.setAdapter(mSectionsPagerAdapter);
         mViewPager.setOnPageChangeListener(mPageChangeListener);
+        BlurManager.getBlurQueue().setCurrentPosition(mViewPager.getCurrentItem());
         mViewPager.setScrollDurationFactor(sUseHighRes ? 5 : 3);
 
         mViewPager.setOnTouchListener(new View.OnTouchListener() {
@@ -274,7 +275,7 @@ public class MainActivity extends FragmentActivity {
     /**
      * Callback interface for responding to page changes in the {@link EdgeEffectViewPager}.
      *
-     * <p>This class is responsible for sending the alpha parameter to our Fragments.</p>
+     * <p>This class is responsible for sending the blur amount to our Fragments.</p>
      */
     private class FragmentPageChangeListener implements ViewPager.OnPageChangeListener {
 
@@ -295,23 +296,26 @@ public class MainActivity extends FragmentActivity {
 
             // Check if we are looking at the current and next views.
             if (mCurrentIndex == position) {
-                mCurrentPage.setPageAlpha(Math.min(BLUR_SENSITIVITY * positionOffset, 1));
+                mCurrentPage.setBlurAmount(Math.min(BLUR_SENSITIVITY * positionOffset, 1));
                 if (mNextPage != null) {
-                    mNextPage.setPageAlpha(Math.min(1, BLUR_SENSITIVITY *  (1 - positionOffset)));
+                    mNextPage.setBlurAmount(Math.min(1, BLUR_SENSITIVITY *  (1 - positionOffset)));
                 }
             } else {
                 // Here we are looking at the current and previous views.
                 // The offset is based on the previous view's position,
                 // so we invert the logic.
-                mCurrentPage.setPageAlpha(Math.min(1, BLUR_SENSITIVITY * (1 - positionOffset)));
+                mCurrentPage.setBlurAmount(Math.min(1, BLUR_SENSITIVITY * (1 - positionOffset)));
                 if (mPreviousPage != null) {
-                    mPreviousPage.setPageAlpha(Math.min(1, BLUR_SENSITIVITY * positionOffset));
+                    mPreviousPage.setBlurAmount(Math.min(1, BLUR_SENSITIVITY * positionOffset));
                 }
             }
         }
 
         @Override
         public void onPageSelected(int position) {
+            // Blur the pages around the new one first.
+            BlurManager.getBlurQueue().setCurrentPosition(position);
+
             // Do fade title callbacks.
             if (mSectionsPagerAdapter.getRegisteredFragment(mViewPager.getCurrentItem()) != null) {
                 mSectionsPagerAdapter.getRegisteredFragment(mViewPager.getCurrentItem()).showTitle();
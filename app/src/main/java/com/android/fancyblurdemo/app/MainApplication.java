@@ -2,42 +2,55 @@ package com.android.fancyblurdemo.app;
 
 import android.app.ActivityManager;
 import android.app.Application;
-import android.util.Log;
 
 import com.android.fancyblurdemo.app.imageblur.BlurManager;
-import com.android.fancyblurdemo.app.imageblur.DiskLruImageCache;
-import com.android.fancyblurdemo.volley.toolbox.ImageLoader;
 
 /**
  * Created by kevin.marlow on 3/20/14.
  */
 public class MainApplication extends Application {
 
+    /** Trims the Volley and blur caches when memory runs low. */
+    private MemoryPressureManager mMemoryPressureManager;
+
     @Override
     public void onCreate() {
         super.onCreate();
         init();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mMemoryPressureManager.onTrimMemory(level);
+    }
+
     @Override
     public void onLowMemory() {
-        // TODO: Clear cache.
-//        VolleyManager.getRequestQueue().getCache().clear();
-//        ImageLoader.ImageCache cache = BlurManager.getBlurQueue().getCache();
-//        if (cache instanceof DiskLruImageCache) {
-//            ((DiskLruImageCache) cache).clearCache();
-//        }
+        mMemoryPressureManager.onLowMemory();
         super.onLowMemory();
     }
 
+    /**
+     * Returns the manager that trims the app's caches when memory runs low.
+     */
+    public MemoryPressureManager getMemoryPressureManager() {
+        return mMemoryPressureManager;
+    }
+
     /**
      * Initializes the request manager, the image cache, and the blur manager
      */
     private void init() {
         ActivityManager am = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
-        int heapSize = am.getMemoryClass();
-        VolleyManager.init(this, (heapSize * 1024 * 1024 / 8));
+        int heapSize = am.getMemoryClass() * 1024 * 1024;
+        // The image cache starts at an eighth of the heap and sizes itself to the photos on
+        // the pages being viewed, which depends on the screen the photos are sized for.
+        VolleyManager.init(this, heapSize / 8, heapSize / 16, heapSize / 4);
         BlurManager.init(this, this.getPackageCodePath());
+        mMemoryPressureManager = new MemoryPressureManager();
+        VolleyManager.registerTrimmables(mMemoryPressureManager);
+        BlurManager.registerTrimmables(mMemoryPressureManager);
     }
 
 }
@@ -0,0 +1,217 @@
+package com.android.fancyblurdemo.app;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+
+import com.android.fancyblurdemo.volley.VolleyLog;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Releases memory across the app's caches when the system asks for it.
+ *
+ * Anything that holds memory it can give back registers a {@link Trimmable} in one of
+ * three stages. On every trim the stages run in order, cheapest to recover first:
+ * memory caches are trimmed at every level, to the fraction returned by
+ * {@link #getRetainFraction(int)}; scratch pools are released once memory is actually
+ * getting low; queued work is dropped only when memory is critical or the process is
+ * about to be killed.
+ *
+ * Every trim is recorded with the bytes each registrant reported releasing, and the last
+ * few records are kept for inspection.
+ */
+public class MemoryPressureManager {
+
+    /** Memory caches; trimmed proportionally at every level. */
+    public static final int STAGE_MEMORY_CACHE = 0;
+
+    /** Scratch buffers and pools; released once memory is getting low. */
+    public static final int STAGE_POOL = 1;
+
+    /** Queued work; dropped only when memory is critical. */
+    public static final int STAGE_QUEUE = 2;
+
+    /** Number of trim records kept. */
+    private static final int AUDIT_SIZE = 16;
+
+    /**
+     * Something that can give memory back.
+     */
+    public interface Trimmable {
+        /**
+         * Releases memory in response to a trim level.
+         * @param level One of the {@link ComponentCallbacks2} TRIM_MEMORY levels.
+         * @return The number of bytes released.
+         */
+        public long onTrimMemory(int level);
+    }
+
+    /**
+     * The bytes released by one trim.
+     */
+    public static class TrimRecord {
+        /** The trim level. */
+        public final int level;
+
+        /** When the trim happened, in {@link SystemClock#elapsedRealtime()} time. */
+        public final long timeMs;
+
+        /** The name of each registrant that ran, in the order they ran. */
+        public final String[] names;
+
+        /** The bytes each registrant released. */
+        public final long[] bytes;
+
+        /** The bytes released in total. */
+        public final long totalBytes;
+
+        TrimRecord(int level, long timeMs, String[] names, long[] bytes) {
+            this.level = level;
+            this.timeMs = timeMs;
+            this.names = names;
+            this.bytes = bytes;
+            long total = 0;
+            for (long b : bytes) {
+                total += b;
+            }
+            this.totalBytes = total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder()
+                    .append("level ").append(level).append(": ").append(totalBytes).append(" bytes");
+            for (int i = 0; i < names.length; i++) {
+                builder.append(i == 0 ? " (" : ", ").append(names[i]).append(' ').append(bytes[i]);
+            }
+            return builder.append(names.length > 0 ? ")" : "").toString();
+        }
+    }
+
+    private static class Registration {
+        final String name;
+        final int stage;
+        final Trimmable trimmable;
+
+        Registration(String name, int stage, Trimmable trimmable) {
+            this.name = name;
+            this.stage = stage;
+            this.trimmable = trimmable;
+        }
+    }
+
+    /** Registrations, ordered by stage and then by registration order. */
+    private final List<Registration> mRegistrations = new ArrayList<Registration>();
+
+    /** The most recent trims, oldest first. */
+    private final LinkedList<TrimRecord> mAudit = new LinkedList<TrimRecord>();
+
+    /** Bytes released by every trim so far. */
+    private long mTotalBytesReleased = 0;
+
+    /**
+     * Registers something that can release memory.
+     * @param name A short name used in the audit.
+     * @param stage One of {@link #STAGE_MEMORY_CACHE}, {@link #STAGE_POOL} or {@link #STAGE_QUEUE}.
+     * @param trimmable What to call.
+     */
+    public synchronized void register(String name, int stage, Trimmable trimmable) {
+        int index = 0;
+        while (index < mRegistrations.size() && mRegistrations.get(index).stage <= stage) {
+            index++;
+        }
+        mRegistrations.add(index, new Registration(name, stage, trimmable));
+    }
+
+    /**
+     * Trims every registrant whose stage applies to the level, in stage order. Call this
+     * from {@code onTrimMemory}.
+     * @param level One of the {@link ComponentCallbacks2} TRIM_MEMORY levels.
+     * @return The record of this trim.
+     */
+    public synchronized TrimRecord onTrimMemory(int level) {
+        List<String> names = new ArrayList<String>();
+        List<Long> released = new ArrayList<Long>();
+        for (Registration registration : mRegistrations) {
+            if (appliesTo(registration.stage, level)) {
+                names.add(registration.name);
+                released.add(registration.trimmable.onTrimMemory(level));
+            }
+        }
+
+        long[] bytes = new long[released.size()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = released.get(i);
+        }
+        TrimRecord record = new TrimRecord(level, SystemClock.elapsedRealtime(),
+                names.toArray(new String[names.size()]), bytes);
+        mAudit.addLast(record);
+        if (mAudit.size() > AUDIT_SIZE) {
+            mAudit.removeFirst();
+        }
+        mTotalBytesReleased += record.totalBytes;
+        VolleyLog.d("Trimmed memory, %s", record);
+        return record;
+    }
+
+    /**
+     * Trims everything; call this from {@code onLowMemory}.
+     */
+    public TrimRecord onLowMemory() {
+        return onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    /**
+     * Returns the most recent trims, oldest first.
+     */
+    public synchronized List<TrimRecord> getAudit() {
+        return new ArrayList<TrimRecord>(mAudit);
+    }
+
+    /**
+     * Returns the bytes released by every trim so far.
+     */
+    public synchronized long getTotalBytesReleased() {
+        return mTotalBytesReleased;
+    }
+
+    /**
+     * Returns the fraction of its capacity a memory cache should keep at a trim level. The
+     * closer the process is to being killed, the less it keeps.
+     */
+    public static float getRetainFraction(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 0.5f;
+        }
+        return 0.75f;
+    }
+
+    /**
+     * Returns true if a stage runs at a trim level. Pools are only released once memory is
+     * low or nothing is on screen, and queued work is only dropped when memory is critical
+     * or the process may be killed next.
+     */
+    private static boolean appliesTo(int stage, int level) {
+        switch (stage) {
+            case STAGE_MEMORY_CACHE:
+                return true;
+            case STAGE_POOL:
+                return level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+            case STAGE_QUEUE:
+                return level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                        || level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE;
+            default:
+                return false;
+        }
+    }
+}
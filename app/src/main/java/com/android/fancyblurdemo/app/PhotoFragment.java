@@ -98,6 +98,7 @@ public class PhotoFragment extends Fragment implements View.OnClickListener {
 
         mImageView = (NetworkImageView) rootView.findViewById(R.id.flickrView);
         mBlurImageView = (BlurImageView) rootView.findViewById(R.id.blurView);
+        mBlurImageView.setPosition(getArguments().getInt(ARG_PAGE_NUMBER));
         mProgressBar = (ProgressBar) rootView.findViewById(R.id.progressBar);
         mOverlay = rootView.findViewById(R.id.overlay);
 
@@ -160,8 +161,9 @@ public class PhotoFragment extends Fragment implements View.OnClickListener {
                     Animation fullFadeIn = AnimationUtils.loadAnimation(getActivity(), android.R.anim.fade_in);
                     fullFadeIn.setFillAfter(true);
                     mOverlay.startAnimation(fullFadeIn);
+                    mBlurImageView.setEncodedImageCache(VolleyManager.getRequestQueue().getCache());
                     mBlurImageView.setImageToBlur(response.getBitmap(), response.getRequestUrl(), BlurManager.getImageBlurrer());
-                    mBlurImageView.setImageAlpha(0);
+                    mBlurImageView.setBlurAmount(0);
                     mProgressBar.setVisibility(View.GONE);
                     if (!mIsTitleShown && (mHasHadCallback || mIsImageShown)) {
                         mTitleText.setVisibility(View.VISIBLE);
@@ -185,13 +187,13 @@ public class PhotoFragment extends Fragment implements View.OnClickListener {
     }
 
     /**
-     * Set the blurred image alpha. This is called during
+     * Set the amount of blur over the photo. This is called during
      * {@link android.support.v4.view.ViewPager.OnPageChangeListener#onPageScrolled(int, float, int)}.
      *
-     * @param alpha The alpha value.
+     * @param blurAmount Between 0 for a sharp photo and 1 for the strongest blur.
      */
-    public void setPageAlpha(float alpha) {
-        mBlurImageView.setImageAlpha((int) (255 * alpha));
+    public void setBlurAmount(float blurAmount) {
+        mBlurImageView.setBlurAmount(blurAmount);
     }
 
     /**
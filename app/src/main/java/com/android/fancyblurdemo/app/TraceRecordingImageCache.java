@@ -0,0 +1,84 @@
+package com.android.fancyblurdemo.app;
+
+import android.graphics.Bitmap;
+
+import com.android.fancyblurdemo.cachepolicy.AccessTrace;
+import com.android.fancyblurdemo.volley.toolbox.ImageLoader;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * An image cache that records every lookup and put before passing it on, so the requests
+ * the app really makes can be replayed against other cache policies with the benchmark
+ * module's {@code CacheTraceSimulator}.
+ *
+ * Only the key and the size of each image are kept, in memory, up to a fixed number of
+ * events. Save them with {@link #writeTo(File)}.
+ */
+public class TraceRecordingImageCache implements ImageLoader.ImageCache, MemoryPressureManager.Trimmable {
+
+    /** Default number of events kept; a few hours of paging. */
+    public static final int DEFAULT_MAX_EVENTS = 50000;
+
+    private final ImageLoader.ImageCache mCache;
+    private final AccessTrace mTrace;
+
+    /**
+     * @param cache The cache to record the requests to.
+     * @param maxEvents Number of events kept; later events are not recorded.
+     */
+    public TraceRecordingImageCache(ImageLoader.ImageCache cache, int maxEvents) {
+        mCache = cache;
+        mTrace = new AccessTrace(maxEvents);
+    }
+
+    public TraceRecordingImageCache(ImageLoader.ImageCache cache) {
+        this(cache, DEFAULT_MAX_EVENTS);
+    }
+
+    @Override
+    public Bitmap getBitmap(String url) {
+        mTrace.recordGet(url);
+        return mCache.getBitmap(url);
+    }
+
+    @Override
+    public void putBitmap(String url, Bitmap bitmap) {
+        mTrace.recordPut(url, bitmap.getByteCount());
+        mCache.putBitmap(url, bitmap);
+    }
+
+    /**
+     * Trims the recorded cache, if it can be trimmed.
+     * @return The bytes it released.
+     */
+    @Override
+    public long onTrimMemory(int level) {
+        if (mCache instanceof MemoryPressureManager.Trimmable) {
+            return ((MemoryPressureManager.Trimmable) mCache).onTrimMemory(level);
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the events recorded so far.
+     */
+    public AccessTrace getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * Saves the events recorded so far, in the format {@code CacheTraceSimulator} reads.
+     */
+    public void writeTo(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            mTrace.writeTo(writer);
+        } finally {
+            writer.close();
+        }
+    }
+}
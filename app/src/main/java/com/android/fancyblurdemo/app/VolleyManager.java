@@ -38,10 +38,31 @@ public class VolleyManager {
      * @param cacheSize The size of your image cache.
      */
     public static void init(Context context, int cacheSize) {
+        init(context, cacheSize, cacheSize, cacheSize);
+    }
+
+    /**
+     * This is the initializer for an image cache that sizes itself between two bounds.
+     * @param context Your application context.
+     * @param cacheSize The starting size of your image cache.
+     * @param minCacheSize The smallest the image cache shrinks to.
+     * @param maxCacheSize The largest the image cache grows to.
+     */
+    public static void init(Context context, int cacheSize, int minCacheSize, int maxCacheSize) {
+        init(context, new BitmapLruImageCache(cacheSize, minCacheSize, maxCacheSize));
+    }
+
+    /**
+     * This is the initializer for an image cache of your choice, such as a
+     * {@link TraceRecordingImageCache} around a {@link BitmapLruImageCache}.
+     * @param context Your application context.
+     * @param imageCache The image cache.
+     */
+    public static void init(Context context, ImageLoader.ImageCache imageCache) {
         if (sInstance == null) {
             sInstance = new VolleyManager();
             sInstance.mRequestQueue = Volley.newRequestQueue(context);
-            sInstance.mImageCache = new BitmapLruImageCache(cacheSize);
+            sInstance.mImageCache = imageCache;
             sInstance.mImageLoader = new ImageLoader(VolleyManager.getRequestQueue(), sInstance.mImageCache);
         }
     }
@@ -93,4 +114,18 @@ public class VolleyManager {
         }
         sInstance.mImageCache.putBitmap(cacheKey, bitmap);
     }
+
+    /**
+     * Registers the image cache with the memory pressure manager, if it can be trimmed.
+     * @param manager The app's memory pressure manager.
+     */
+    public static void registerTrimmables(MemoryPressureManager manager) {
+        if (sInstance == null) {
+            throw new IllegalStateException("You must call init() first.");
+        }
+        if (sInstance.mImageCache instanceof MemoryPressureManager.Trimmable) {
+            manager.register("volley-images", MemoryPressureManager.STAGE_MEMORY_CACHE,
+                    (MemoryPressureManager.Trimmable) sInstance.mImageCache);
+        }
+    }
 }
@@ -0,0 +1,15 @@
+package com.android.fancyblurdemo.app.imageblur;
+
+/**
+ * Indicates that a blur was dropped because its deadline passed before it finished.
+ * The image was not blurred and nothing was cached; blurring it again starts over.
+ */
+@SuppressWarnings("serial")
+public class BlurDeadlineError extends BlurError {
+
+    public BlurDeadlineError() {}
+
+    public BlurDeadlineError(String exceptionMessage) {
+        super(exceptionMessage);
+    }
+}
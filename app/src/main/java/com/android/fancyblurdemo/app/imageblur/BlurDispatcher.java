@@ -1,15 +1,34 @@
 package com.android.fancyblurdemo.app.imageblur;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.os.Process;
 
+import com.android.fancyblurdemo.blurkernel.BlurGeometry;
+import com.android.fancyblurdemo.blurkernel.BlurPyramid;
+import com.android.fancyblurdemo.blurkernel.BlurWorkspace;
+import com.android.fancyblurdemo.blurkernel.BoxBlur;
+import com.android.fancyblurdemo.blurkernel.Cancelable;
+import com.android.fancyblurdemo.blurkernel.Downscaler;
+import com.android.fancyblurdemo.blurkernel.StackBlur;
 import com.android.fancyblurdemo.volley.ResponseDelivery;
 import com.android.fancyblurdemo.volley.VolleyLog;
 import com.android.fancyblurdemo.volley.toolbox.ImageLoader;
 
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Provides a thread for performing image blur on a queue of requests.
@@ -23,6 +42,30 @@ public class BlurDispatcher extends Thread {
 
     private static final boolean DEBUG = VolleyLog.DEBUG;
 
+    /** Runs the whole blur on the dispatcher thread. */
+    public static final int MODE_SERIAL = 0;
+
+    /** Splits each blur pass into bands that run across all cores. */
+    public static final int MODE_PARALLEL = 1;
+
+    /**
+     * Images with fewer pixels than this are blurred serially; the handoff costs more than it saves.
+     *
+     * This is below the blurs the app runs by default, 80x60 on phones and 128x96 on tablets at
+     * a scale factor of 8, so those are split into bands while the smaller levels of a blur
+     * pyramid stay serial.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 64 * 64;
+
+    /**
+     * Number of pool threads. The dispatcher thread blurs one band itself, so on a single core
+     * there are none and every blur runs serially.
+     */
+    private static final int BAND_THREAD_COUNT = Runtime.getRuntime().availableProcessors() - 1;
+
+    /** Pool shared by all dispatchers for running parallel blur bands. */
+    private static Executor sBandExecutor;
+
     /** The queue of requests coming in for triage. */
     private final BlockingQueue<BlurRequest> mBlurQueue;
 
@@ -35,6 +78,42 @@ public class BlurDispatcher extends Thread {
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
 
+    /** Either {@link #MODE_SERIAL} or {@link #MODE_PARALLEL}. */
+    private volatile int mBlurMode = MODE_SERIAL;
+
+    /** Minimum number of pixels before a parallel blur is attempted. */
+    private volatile int mParallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    /** Either {@link StackBlur#KERNEL_REFERENCE} or {@link StackBlur#KERNEL_PACKED}. */
+    private volatile int mKernel = StackBlur.KERNEL_REFERENCE;
+
+    /** Scratch buffers reused by every blur this dispatcher runs. */
+    private final BlurWorkspace mWorkspace = new BlurWorkspace();
+
+    /** Held while a blur uses {@link #mWorkspace}, so it can be released between blurs. */
+    private final ReentrantLock mWorkspaceLock = new ReentrantLock();
+
+    /** Set when the workspace should be released as soon as the current blur is done. */
+    private volatile boolean mReleaseRequested = false;
+
+    /** Paint used to filter the source while downsizing. */
+    private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /** Where blur times and cancellations are counted. */
+    private final BlurMetrics mMetrics;
+
+    /** The request being blurred, polled by the kernels through {@link #mCancelable}. */
+    private volatile BlurRequest mCurrentRequest;
+
+    /** Stops the blur once the current request is canceled or past its deadline. */
+    private final Cancelable mCancelable = new Cancelable() {
+        @Override
+        public boolean isCanceled() {
+            BlurRequest request = mCurrentRequest;
+            return request != null && (request.isCanceled() || request.isPastDeadline());
+        }
+    };
+
     /**
      * Creates a new blur triage dispatcher thread.  You must call {@link #start()}
      * in order to begin processing.
@@ -46,9 +125,25 @@ public class BlurDispatcher extends Thread {
     public BlurDispatcher(
             BlockingQueue<BlurRequest> blurQueue,
             ImageLoader.ImageCache cache, BlurResponseDelivery delivery) {
+        this(blurQueue, cache, delivery, new BlurMetrics());
+    }
+
+    /**
+     * Creates a new blur triage dispatcher thread that reports to the given metrics.
+     * You must call {@link #start()} in order to begin processing.
+     *
+     * @param blurQueue Queue of incoming requests for triage
+     * @param cache Cache interface to use for resolution
+     * @param delivery Delivery interface to use for posting responses
+     * @param metrics Metrics to update, usually shared by every dispatcher of a queue
+     */
+    public BlurDispatcher(
+            BlockingQueue<BlurRequest> blurQueue,
+            ImageLoader.ImageCache cache, BlurResponseDelivery delivery, BlurMetrics metrics) {
         mBlurQueue = blurQueue;
         mCache = cache;
         mDelivery = delivery;
+        mMetrics = metrics;
     }
 
     /**
@@ -60,6 +155,46 @@ public class BlurDispatcher extends Thread {
         interrupt();
     }
 
+    /**
+     * Releases this dispatcher's scratch buffers. If a blur is running they are released
+     * once it is done instead, so this never waits for a blur.
+     *
+     * @return The bytes released now; 0 if the release had to be put off.
+     */
+    public long releaseWorkspace() {
+        if (!mWorkspaceLock.tryLock()) {
+            mReleaseRequested = true;
+            return 0;
+        }
+        try {
+            mReleaseRequested = false;
+            return mWorkspace.release();
+        } finally {
+            mWorkspaceLock.unlock();
+        }
+    }
+
+    /**
+     * Selects how this dispatcher runs its stack blurs. Both modes produce identical
+     * pixels.
+     *
+     * @param blurMode Either {@link #MODE_SERIAL} or {@link #MODE_PARALLEL}
+     * @param parallelThreshold Images with fewer pixels than this stay serial
+     */
+    public void setBlurMode(int blurMode, int parallelThreshold) {
+        mBlurMode = blurMode;
+        mParallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Selects the stack blur kernel. Both kernels produce identical pixels.
+     *
+     * @param kernel Either {@link StackBlur#KERNEL_REFERENCE} or {@link StackBlur#KERNEL_PACKED}
+     */
+    public void setKernel(int kernel) {
+        mKernel = kernel;
+    }
+
     @Override
     public void run() {
         if (DEBUG) VolleyLog.v("start new dispatcher");
@@ -78,8 +213,11 @@ public class BlurDispatcher extends Thread {
                     continue;
                 }
 
-                // Attempt to retrieve the blurred image from its cache.
-                Bitmap cachedBlur = mCache.getBitmap(request.getCacheKey());
+                BlurSpec spec = request.getBlurSpec();
+
+                // Attempt to retrieve the blurred image from its cache. A hit costs no more
+                // than an error would, so it is delivered even past the deadline.
+                Bitmap cachedBlur = getCachedBlur(request.getCacheKey(), spec);
                 if (cachedBlur != null) {
                     request.addMarker("blur-cache-hit");
                     // Cache hit; return bitmap.
@@ -87,28 +225,52 @@ public class BlurDispatcher extends Thread {
                     continue;
                 }
 
-                Bitmap bitmap = request.getBitmap();
+                // If the request is too late for a fresh blur to be useful, don't bother.
+                if (request.isPastDeadline()) {
+                    mMetrics.onDroppedLate();
+                    request.addMarker("blur-discard-late");
+                    mDelivery.postError(request, new BlurDeadlineError("Deadline passed while queued"));
+                    continue;
+                }
 
                 // We have a cache miss; blur the image and delivery.
                 request.addMarker("blur-cache-miss");
-                int subsectionWidth = request.getCropWidth() == 0 ? bitmap.getWidth() : request.getCropWidth();
-                int subsectionHeight = request.getCropHeight() == 0 ? bitmap.getHeight() : request.getCropHeight();
-                int left = request.getLeftPosition();
-                int top = request.getTopPosition();
-
-                // First we downsize the image.
-                float scaleFactor = 8;
-                float radius = 2;
-                Bitmap blurred = Bitmap.createBitmap((int) (subsectionWidth / scaleFactor),
-                        (int) (subsectionHeight / scaleFactor), Bitmap.Config.ARGB_8888);
-                Canvas canvas = new Canvas(blurred);
-                canvas.translate(-left / scaleFactor, -top / scaleFactor);
-                canvas.scale(1 / scaleFactor, 1 / scaleFactor);
-                Paint paint = new Paint();
-                paint.setFlags(Paint.FILTER_BITMAP_FLAG);
-                canvas.drawBitmap(bitmap, 0, 0, paint);
-
-                blurred = fastblur(blurred, (int) radius, false);
+                long blurStartNanos = System.nanoTime();
+
+                // The kernels poll the request, so a cancel or a missed deadline stops the
+                // blur part way.
+                Bitmap blurred;
+                mWorkspaceLock.lock();
+                mCurrentRequest = request;
+                mWorkspace.setCancelable(mCancelable);
+                try {
+                    blurred = blur(request, spec);
+                } catch (CancellationException e) {
+                    // The partly blurred image is useless; drop it.
+                    long spentNanos = System.nanoTime() - blurStartNanos;
+                    if (request.isCanceled()) {
+                        mMetrics.onBlurCanceled(spentNanos);
+                        request.finish("blur-canceled-in-progress");
+                    } else {
+                        mMetrics.onBlurAbortedLate(spentNanos);
+                        request.addMarker("blur-aborted-late");
+                        mDelivery.postError(request, new BlurDeadlineError("Deadline passed while blurring"));
+                    }
+                    continue;
+                } finally {
+                    mWorkspace.setCancelable(null);
+                    mCurrentRequest = null;
+                    if (mReleaseRequested) {
+                        mReleaseRequested = false;
+                        mWorkspace.release();
+                    }
+                    mWorkspaceLock.unlock();
+                }
+                if (blurred == null) {
+                    mDelivery.postError(request, new BlurError("No image to blur"));
+                    continue;
+                }
+                mMetrics.onBlurCompleted(System.nanoTime() - blurStartNanos);
 
                 BlurResponse response = BlurResponse.success(blurred);
                 request.addMarker("blur-image-complete");
@@ -122,6 +284,7 @@ public class BlurDispatcher extends Thread {
                     continue;
                 }
 
+                // With a WriteBehindImageCache this returns before the bitmap is on disk.
                 mCache.putBitmap(request.getCacheKey(), blurred);
 
             } catch (InterruptedException e) {
@@ -134,238 +297,247 @@ public class BlurDispatcher extends Thread {
         }
     }
 
-    public Bitmap fastblur(Bitmap sentBitmap, int radius, boolean canReuseInBitmap) {
-
-        // Stack Blur v1.0 from
-        // http://www.quasimondo.com/StackBlurForCanvas/StackBlurDemo.html
-        //
-        // Java Author: Mario Klingemann <mario at quasimondo.com>
-        // http://incubator.quasimondo.com
-        // created Feburary 29, 2004
-        // Android port : Yahel Bouaziz <yahel at kayenko.com>
-        // http://www.kayenko.com
-        // ported april 5th, 2012
-
-        // This is a compromise between Gaussian Blur and Box blur
-        // It creates much better looking blurs than Box Blur, but is
-        // 7x faster than my Gaussian Blur implementation.
-        //
-        // I called it Stack Blur because this describes best how this
-        // filter works internally: it creates a kind of moving stack
-        // of colors whilst scanning through the image. Thereby it
-        // just has to add one new block of color to the right side
-        // of the stack and remove the leftmost color. The remaining
-        // colors on the topmost layer of the stack are either added on
-        // or reduced by one, depending on if they are on the right or
-        // on the left side of the stack.
-        //
-        // If you are using this algorithm in your code please add
-        // the following line:
-        //
-        // Stack Blur Algorithm by Mario Klingemann <mario@quasimondo.com>
-
-        Bitmap bitmap;
-        if (canReuseInBitmap) {
-            bitmap = sentBitmap;
-        } else {
-            bitmap = sentBitmap.copy(sentBitmap.getConfig(), true);
+    /**
+     * Blurs the request's image, preferring the encoded image, which can be decoded at
+     * about the blurred size.
+     *
+     * @return The blurred atlas, or null if the request has no image to blur.
+     * @throws CancellationException If the request got canceled while blurring.
+     */
+    private Bitmap blur(BlurRequest request, BlurSpec spec) {
+        byte[] encodedImage = request.getEncodedImage();
+        if (encodedImage != null) {
+            Bitmap blurred = blurEncoded(encodedImage, request, spec);
+            request.addMarker(blurred != null ? "blur-decode-sampled" : "blur-decode-failed");
+            if (blurred != null) {
+                return blurred;
+            }
         }
-
-        if (radius < 1) {
-            return (null);
+        Bitmap bitmap = request.getBitmap();
+        if (bitmap == null) {
+            return null;
         }
+        return blurBitmap(bitmap, request, spec);
+    }
 
-        int w = bitmap.getWidth();
-        int h = bitmap.getHeight();
-
-        int[] pix = new int[w * h];
-        bitmap.getPixels(pix, 0, w, 0, 0, w, h);
-
-        int wm = w - 1;
-        int hm = h - 1;
-        int wh = w * h;
-        int div = radius + radius + 1;
-
-        int r[] = new int[wh];
-        int g[] = new int[wh];
-        int b[] = new int[wh];
-        int rsum, gsum, bsum, x, y, i, p, yp, yi, yw;
-        int vmin[] = new int[Math.max(w, h)];
+    /**
+     * Downsizes the request's crop of a decoded bitmap with a filtered canvas draw and
+     * blurs it.
+     */
+    private Bitmap blurBitmap(Bitmap bitmap, BlurRequest request, BlurSpec spec) {
+        BlurGeometry geometry = BlurGeometry.compute(bitmap.getWidth(), bitmap.getHeight(),
+                request.getCropWidth(), request.getCropHeight(),
+                request.getLeftPosition(), request.getTopPosition(), spec.scaleFactor);
+
+        BlurPyramid pyramid = BlurPyramid.layout(geometry.dstWidth, geometry.dstHeight,
+                spec.pyramidLevels);
+
+        // First we downsize the image into level 0 of the atlas.
+        Bitmap blurred = Bitmap.createBitmap(pyramid.atlasWidth, pyramid.atlasHeight,
+                spec.config);
+        Canvas canvas = new Canvas(blurred);
+        canvas.clipRect(0, 0, geometry.dstWidth, geometry.dstHeight);
+        canvas.translate(-geometry.srcLeft / geometry.scaleFactor, -geometry.srcTop / geometry.scaleFactor);
+        canvas.scale(1 / geometry.scaleFactor, 1 / geometry.scaleFactor);
+        canvas.drawBitmap(bitmap, 0, 0, mScalePaint);
+
+        // The downsized bitmap is ours, so blur it in place rather than copying it.
+        blurPyramid(blurred, pyramid, spec.radius, spec.algorithm);
+        return blurred;
+    }
 
-        int divsum = (div + 1) >> 1;
-        divsum *= divsum;
-        int dv[] = new int[256 * divsum];
-        for (i = 0; i < 256 * divsum; i++) {
-            dv[i] = (i / divsum);
+    /**
+     * Decodes the request's crop of an encoded image straight to about the blurred size
+     * and blurs it. The decoder skips whole power of two steps with
+     * {@link BitmapFactory.Options#inSampleSize}, and {@link Downscaler} takes care of
+     * whatever is left of the scale factor, so the full size image is never decoded.
+     *
+     * @return The blurred atlas, or null if the image could not be decoded or the crop
+     *     does not lie inside it.
+     */
+    private Bitmap blurEncoded(byte[] data, BlurRequest request, BlurSpec spec) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        int imageWidth = options.outWidth;
+        int imageHeight = options.outHeight;
+        if (imageWidth <= 0 || imageHeight <= 0) {
+            return null;
         }
 
-        yw = yi = 0;
-
-        int[][] stack = new int[div][3];
-        int stackpointer;
-        int stackstart;
-        int[] sir;
-        int rbs;
-        int r1 = radius + 1;
-        int routsum, goutsum, boutsum;
-        int rinsum, ginsum, binsum;
-
-        for (y = 0; y < h; y++) {
-            rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
-            for (i = -radius; i <= radius; i++) {
-                p = pix[yi + Math.min(wm, Math.max(i, 0))];
-                sir = stack[i + radius];
-                sir[0] = (p & 0xff0000) >> 16;
-                sir[1] = (p & 0x00ff00) >> 8;
-                sir[2] = (p & 0x0000ff);
-                rbs = r1 - Math.abs(i);
-                rsum += sir[0] * rbs;
-                gsum += sir[1] * rbs;
-                bsum += sir[2] * rbs;
-                if (i > 0) {
-                    rinsum += sir[0];
-                    ginsum += sir[1];
-                    binsum += sir[2];
-                } else {
-                    routsum += sir[0];
-                    goutsum += sir[1];
-                    boutsum += sir[2];
-                }
-            }
-            stackpointer = radius;
-
-            for (x = 0; x < w; x++) {
-
-                r[yi] = dv[rsum];
-                g[yi] = dv[gsum];
-                b[yi] = dv[bsum];
-
-                rsum -= routsum;
-                gsum -= goutsum;
-                bsum -= boutsum;
-
-                stackstart = stackpointer - radius + div;
-                sir = stack[stackstart % div];
-
-                routsum -= sir[0];
-                goutsum -= sir[1];
-                boutsum -= sir[2];
-
-                if (y == 0) {
-                    vmin[x] = Math.min(x + radius + 1, wm);
-                }
-                p = pix[yw + vmin[x]];
-
-                sir[0] = (p & 0xff0000) >> 16;
-                sir[1] = (p & 0x00ff00) >> 8;
-                sir[2] = (p & 0x0000ff);
-
-                rinsum += sir[0];
-                ginsum += sir[1];
-                binsum += sir[2];
-
-                rsum += rinsum;
-                gsum += ginsum;
-                bsum += binsum;
-
-                stackpointer = (stackpointer + 1) % div;
-                sir = stack[(stackpointer) % div];
-
-                routsum += sir[0];
-                goutsum += sir[1];
-                boutsum += sir[2];
-
-                rinsum -= sir[0];
-                ginsum -= sir[1];
-                binsum -= sir[2];
-
-                yi++;
-            }
-            yw += w;
+        BlurGeometry geometry = BlurGeometry.compute(imageWidth, imageHeight,
+                request.getCropWidth(), request.getCropHeight(),
+                request.getLeftPosition(), request.getTopPosition(), spec.scaleFactor);
+        if (!geometry.fitsIn(imageWidth, imageHeight)) {
+            return null;
         }
-        for (x = 0; x < w; x++) {
-            rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
-            yp = -radius * w;
-            for (i = -radius; i <= radius; i++) {
-                yi = Math.max(0, yp) + x;
-
-                sir = stack[i + radius];
-
-                sir[0] = r[yi];
-                sir[1] = g[yi];
-                sir[2] = b[yi];
-
-                rbs = r1 - Math.abs(i);
-
-                rsum += r[yi] * rbs;
-                gsum += g[yi] * rbs;
-                bsum += b[yi] * rbs;
-
-                if (i > 0) {
-                    rinsum += sir[0];
-                    ginsum += sir[1];
-                    binsum += sir[2];
-                } else {
-                    routsum += sir[0];
-                    goutsum += sir[1];
-                    boutsum += sir[2];
-                }
-
-                if (i < hm) {
-                    yp += w;
-                }
-            }
-            yi = x;
-            stackpointer = radius;
-            for (y = 0; y < h; y++) {
-                // Preserve alpha channel: ( 0xff000000 & pix[yi] )
-                pix[yi] = ( 0xff000000 & pix[yi] ) | ( dv[rsum] << 16 ) | ( dv[gsum] << 8 ) | dv[bsum];
-
-                rsum -= routsum;
-                gsum -= goutsum;
-                bsum -= boutsum;
-
-                stackstart = stackpointer - radius + div;
-                sir = stack[stackstart % div];
 
-                routsum -= sir[0];
-                goutsum -= sir[1];
-                boutsum -= sir[2];
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(geometry.scaleFactor);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
 
-                if (x == 0) {
-                    vmin[y] = Math.min(y + r1, hm) * w;
-                }
-                p = x + vmin[y];
-
-                sir[0] = r[p];
-                sir[1] = g[p];
-                sir[2] = b[p];
+        Bitmap decoded;
+        if (geometry.srcWidth == imageWidth && geometry.srcHeight == imageHeight) {
+            decoded = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } else {
+            decoded = decodeRegion(data, geometry, options);
+        }
+        if (decoded == null) {
+            return null;
+        }
 
-                rinsum += sir[0];
-                ginsum += sir[1];
-                binsum += sir[2];
+        int w = decoded.getWidth();
+        int h = decoded.getHeight();
+        int[] source = mWorkspace.getSourceBuffer(w, h);
+        decoded.getPixels(source, 0, w, 0, 0, w, h);
+        decoded.recycle();
+
+        // Decoders round sampled sizes their own way, so never ask for more pixels than
+        // were decoded.
+        int dstWidth = Math.min(geometry.dstWidth, w);
+        int dstHeight = Math.min(geometry.dstHeight, h);
+        BlurPyramid pyramid = BlurPyramid.layout(dstWidth, dstHeight, spec.pyramidLevels);
+
+        int[] pix = mWorkspace.getPixelBuffer(pyramid.atlasWidth, pyramid.atlasHeight);
+        Downscaler.downscale(source, 0, w, w, h, pix, 0, pyramid.atlasWidth, dstWidth, dstHeight);
+        blurPyramid(pix, pyramid, spec.radius, spec.algorithm);
+
+        Bitmap blurred = Bitmap.createBitmap(pyramid.atlasWidth, pyramid.atlasHeight, spec.config);
+        blurred.setPixels(pix, 0, pyramid.atlasWidth, 0, 0, pyramid.atlasWidth, pyramid.atlasHeight);
+        return blurred;
+    }
 
-                rsum += rinsum;
-                gsum += ginsum;
-                bsum += binsum;
+    /**
+     * Decodes the crop of an encoded image with a region decoder.
+     * @return The decoded crop, or null if the image could not be decoded.
+     */
+    private static Bitmap decodeRegion(byte[] data, BlurGeometry geometry, BitmapFactory.Options options) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+        } catch (IOException e) {
+            VolleyLog.d("Cannot decode region: %s", e.getMessage());
+            return null;
+        }
+        if (decoder == null) {
+            return null;
+        }
+        try {
+            return decoder.decodeRegion(new Rect(geometry.srcLeft, geometry.srcTop,
+                    geometry.srcLeft + geometry.srcWidth, geometry.srcTop + geometry.srcHeight), options);
+        } finally {
+            decoder.recycle();
+        }
+    }
 
-                stackpointer = (stackpointer + 1) % div;
-                sir = stack[stackpointer];
+    /**
+     * Returns the largest power of two that does not exceed the scale factor. Decoding with
+     * it never produces fewer pixels than the blur needs.
+     */
+    static int getSampleSize(float scaleFactor) {
+        int sampleSize = 1;
+        while (sampleSize * 2 <= scaleFactor) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
 
-                routsum += sir[0];
-                goutsum += sir[1];
-                boutsum += sir[2];
+    /**
+     * Reads a blurred image from the cache. A {@link DiskLruImageCache} is told the spec's
+     * pixel format so it can decode straight into it; other caches return the pixels in the
+     * format they were put in.
+     */
+    private Bitmap getCachedBlur(String cacheKey, BlurSpec spec) {
+        if (mCache instanceof DiskLruImageCache) {
+            return ((DiskLruImageCache) mCache).getBitmap(cacheKey, spec.config);
+        }
+        return mCache.getBitmap(cacheKey);
+    }
 
-                rinsum -= sir[0];
-                ginsum -= sir[1];
-                binsum -= sir[2];
+    /**
+     * Builds a blur pyramid in place. Level 0 of the atlas must hold the downsized image;
+     * it is blurred, then every further level is downsized from the blurred level above
+     * it and blurred again, all in one pass over a single pixel buffer.
+     *
+     * @param atlas A mutable bitmap of the pyramid's atlas size
+     * @param pyramid The pyramid layout
+     * @param radius The blur radius used for every level
+     * @param algorithm Either {@link BlurSpec#ALGORITHM_STACK} or {@link BlurSpec#ALGORITHM_BOX}
+     */
+    private void blurPyramid(Bitmap atlas, BlurPyramid pyramid, int radius, int algorithm) {
+        int w = pyramid.atlasWidth;
+        int h = pyramid.atlasHeight;
+
+        int[] pix = mWorkspace.getPixelBuffer(w, h);
+        atlas.getPixels(pix, 0, w, 0, 0, w, h);
+        blurPyramid(pix, pyramid, radius, algorithm);
+        atlas.setPixels(pix, 0, w, 0, 0, w, h);
+    }
 
-                yi += w;
+    /**
+     * Builds a blur pyramid in a pixel buffer whose stride is the atlas width. Level 0 must
+     * hold the downsized image.
+     */
+    private void blurPyramid(int[] pix, BlurPyramid pyramid, int radius, int algorithm) {
+        int w = pyramid.atlasWidth;
+        pyramid.clearPadding(pix);
+        for (int level = 0; level < pyramid.levels; level++) {
+            if (level > 0) {
+                pyramid.downscaleLevel(pix, level);
             }
+            blurRegion(pix, pyramid.getOffset(level), w, pyramid.getWidth(level),
+                    pyramid.getHeight(level), radius, algorithm);
         }
+    }
 
-        bitmap.setPixels(pix, 0, w, 0, 0, w, h);
+    /**
+     * Blurs a region of a pixel buffer with the given algorithm, honouring the blur mode
+     * and kernel of this dispatcher.
+     */
+    private void blurRegion(int[] pix, int offset, int stride, int w, int h, int radius, int algorithm) {
+        if (algorithm == BlurSpec.ALGORITHM_BOX) {
+            BoxBlur.blur(pix, offset, stride, w, h, radius, mWorkspace);
+        } else if (mBlurMode == MODE_PARALLEL && BAND_THREAD_COUNT > 0 && w * h >= mParallelThreshold) {
+            StackBlur.blur(pix, offset, stride, w, h, radius, mKernel, mWorkspace, getBandExecutor(), BAND_THREAD_COUNT + 1);
+        } else {
+            StackBlur.blur(pix, offset, stride, w, h, radius, mKernel, mWorkspace, null, 1);
+        }
+    }
 
-        return (bitmap);
+    /**
+     * Lazily creates the pool shared by all dispatchers for parallel blur bands.
+     *
+     * This is a plain fixed pool rather than a {@code ForkJoinPool}, which Android only has
+     * from API 21 on. Each pass is split into one equal band per core up front and the bands
+     * never split further, so there would be nothing for work stealing to balance anyway.
+     * The pool is backed by an array queue so handing off a band does not allocate on the
+     * submitting thread. A pool thread that has to wait for its next band still allocates a
+     * small node inside the queue's lock. If the queue is ever full the band simply runs on
+     * the submitting thread.
+     */
+    private static synchronized Executor getBandExecutor() {
+        if (sBandExecutor == null) {
+            sBandExecutor = new ThreadPoolExecutor(BAND_THREAD_COUNT, BAND_THREAD_COUNT,
+                    0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(BAND_THREAD_COUNT * 4),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            Thread thread = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, "BlurBand #" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return sBandExecutor;
     }
 }
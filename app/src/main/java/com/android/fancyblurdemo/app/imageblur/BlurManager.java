@@ -3,6 +3,9 @@ package com.android.fancyblurdemo.app.imageblur;
 import android.content.Context;
 import android.graphics.Bitmap;
 
+import com.android.fancyblurdemo.app.BitmapLruImageCache;
+import com.android.fancyblurdemo.app.MemoryPressureManager;
+import com.android.fancyblurdemo.blurkernel.StackBlur;
 import com.android.fancyblurdemo.volley.toolbox.ImageLoader;
 
 /**
@@ -11,8 +14,9 @@ import com.android.fancyblurdemo.volley.toolbox.ImageLoader;
 public class BlurManager {
 
     private static int DISK_IMAGECACHE_SIZE = 1024*1024*10;
-    private static Bitmap.CompressFormat DISK_IMAGECACHE_COMPRESS_FORMAT = Bitmap.CompressFormat.PNG;
-    private static int DISK_IMAGECACHE_QUALITY = 100;  //PNG is lossless so quality is ignored but must be provided
+    private static int MEMORY_IMAGECACHE_SIZE = 1024*1024*4;  //blurs are downsized, so this holds a few dozen
+    private static String QUALITY_PREFS_NAME = "blur_quality";
+    private static int BLUR_QUEUE_CAPACITY = 8;  //a few pages either side of the current one
 
     /** Internal instance variable. */
     private static BlurManager sInstance;
@@ -30,6 +34,16 @@ public class BlurManager {
      */
     private ImageLoader.ImageCache mImageCache;
 
+    /**
+     * Blurred images kept in memory.
+     */
+    private BitmapLruImageCache mMemoryCache;
+
+    /**
+     * Picks the blur quality for this device.
+     */
+    private BlurQualityController mQualityController;
+
     private BlurManager() {
         // no instances
     }
@@ -42,10 +56,24 @@ public class BlurManager {
     public static void init(Context context, String uniqueName) {
         if (sInstance == null) {
             sInstance = new BlurManager();
-            sInstance.mImageCache = new DiskLruImageCache(context, uniqueName, DISK_IMAGECACHE_SIZE, DISK_IMAGECACHE_COMPRESS_FORMAT, DISK_IMAGECACHE_QUALITY);
+            // Blurred images are stored as raw pixels, so a hit needs no decode, and written on a
+            // background thread, so blurs do not wait for the disk.
+            sInstance.mImageCache = new WriteBehindImageCache(
+                    new RawPixelImageCache(context, uniqueName, DISK_IMAGECACHE_SIZE));
+            sInstance.mQualityController = new BlurQualityController(
+                    context.getSharedPreferences(QUALITY_PREFS_NAME, Context.MODE_PRIVATE),
+                    BlurQualityController.DEFAULT_BUDGET_MS);
             sInstance.mBlurQueue = new BlurQueue(sInstance.mImageCache);
+            sInstance.mBlurQueue.setQualityController(sInstance.mQualityController);
+            sInstance.mBlurQueue.setCapacity(BLUR_QUEUE_CAPACITY, BlurQueue.OVERFLOW_DROP_LOWEST_PRIORITY);
+            // The default blur is split into bands across the cores; the small levels of a
+            // pyramid stay serial.
+            sInstance.mBlurQueue.setBlurMode(BlurDispatcher.MODE_PARALLEL, BlurDispatcher.DEFAULT_PARALLEL_THRESHOLD);
+            sInstance.mBlurQueue.setKernel(StackBlur.KERNEL_PACKED);
             sInstance.mBlurQueue.start();
-            sInstance.mImageBlurer = new ImageBlurrer(sInstance.mBlurQueue);
+            sInstance.mMemoryCache = new BitmapLruImageCache(MEMORY_IMAGECACHE_SIZE);
+            sInstance.mImageBlurer = new ImageBlurrer(sInstance.mBlurQueue, sInstance.mMemoryCache);
+            sInstance.mImageBlurer.setQualityController(sInstance.mQualityController);
         }
     }
 
@@ -74,7 +102,20 @@ public class BlurManager {
     }
 
     /**
-     * Gets a bitmap from the cache.
+     * Gets the blur quality controller from the singleton.
+     * @return The BlurQualityController.
+     * @throws IllegalStateException This is thrown if init has not been called.
+     */
+    public static BlurQualityController getQualityController() {
+        if (sInstance == null) {
+            throw new IllegalStateException("The BlurManager must be initialized.");
+        }
+        return sInstance.mQualityController;
+    }
+
+    /**
+     * Gets a bitmap from the cache, trying the memory cache before the disk. A bitmap read
+     * from disk is kept in memory too, as {@link ImageBlurrer} keeps the blurs it delivers.
      * @param cacheKey The key used for cache lookup.
      * @return The bitmap.
      */
@@ -82,11 +123,18 @@ public class BlurManager {
         if (sInstance == null) {
             throw new IllegalStateException("You must call init() first.");
         }
-        return sInstance.mImageCache.getBitmap(cacheKey);
+        Bitmap bitmap = sInstance.mMemoryCache.getBitmap(cacheKey);
+        if (bitmap == null) {
+            bitmap = sInstance.mImageCache.getBitmap(cacheKey);
+            if (bitmap != null) {
+                sInstance.mMemoryCache.putBitmap(cacheKey, bitmap);
+            }
+        }
+        return bitmap;
     }
 
     /**
-     * Puts a bitmap in the cache.
+     * Puts a bitmap in the memory cache and the disk cache.
      * @param cacheKey The key used for cache lookup.
      * @param bitmap The bitmap to cache.
      */
@@ -94,6 +142,32 @@ public class BlurManager {
         if (sInstance == null) {
             throw new IllegalStateException("You must call init() first.");
         }
+        sInstance.mMemoryCache.putBitmap(cacheKey, bitmap);
         sInstance.mImageCache.putBitmap(cacheKey, bitmap);
     }
+
+    /**
+     * Registers the blurred image cache, the dispatchers' scratch buffers and the queued
+     * blurs with the memory pressure manager.
+     * @param manager The app's memory pressure manager.
+     */
+    public static void registerTrimmables(MemoryPressureManager manager) {
+        if (sInstance == null) {
+            throw new IllegalStateException("You must call init() first.");
+        }
+        final BlurQueue queue = sInstance.mBlurQueue;
+        manager.register("blur-images", MemoryPressureManager.STAGE_MEMORY_CACHE, sInstance.mMemoryCache);
+        manager.register("blur-workspaces", MemoryPressureManager.STAGE_POOL, new MemoryPressureManager.Trimmable() {
+            @Override
+            public long onTrimMemory(int level) {
+                return queue.releaseScratchBuffers();
+            }
+        });
+        manager.register("blur-queue", MemoryPressureManager.STAGE_QUEUE, new MemoryPressureManager.Trimmable() {
+            @Override
+            public long onTrimMemory(int level) {
+                return queue.dropQueued();
+            }
+        });
+    }
 }
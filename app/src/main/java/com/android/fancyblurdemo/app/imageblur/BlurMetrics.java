@@ -0,0 +1,182 @@
+package com.android.fancyblurdemo.app.imageblur;
+
+/**
+ * Counters kept by a {@link BlurQueue} and updated by its dispatchers.
+ *
+ * All methods are thread safe. Times cover a blur from its cache miss to its result,
+ * decode and downsize included, as measured on the dispatcher thread.
+ */
+public class BlurMetrics {
+
+    /** Weight of the newest blur in the running average of blur times. */
+    private static final double AVERAGE_WEIGHT = 0.1;
+
+    /** Running average of the time a completed blur takes, in nanoseconds. */
+    private double mAverageBlurNanos;
+
+    /** Number of blurs that ran to completion. */
+    private long mCompletedCount;
+
+    /** Number of blurs stopped because their request was canceled while blurring. */
+    private long mCanceledInProgressCount;
+
+    /** Time spent on blurs that were canceled while blurring, in nanoseconds. */
+    private long mCanceledSpentNanos;
+
+    /** Estimated time canceled blurs would still have taken, in nanoseconds. */
+    private long mCanceledSavedNanos;
+
+    /** Number of requests dropped from the queue because their deadline had passed. */
+    private long mDroppedLateCount;
+
+    /** Number of blurs stopped part way because their deadline passed. */
+    private long mAbortedLateCount;
+
+    /** Time spent on blurs that were stopped because their deadline passed, in nanoseconds. */
+    private long mAbortedLateSpentNanos;
+
+    /** Number of requests dropped or turned away because the queue was full. */
+    private long mDroppedFullCount;
+
+    /** Largest number of requests seen waiting in the queue. */
+    private int mPeakQueueDepth;
+
+    /**
+     * Records a blur that ran to completion.
+     * @param blurNanos How long it took.
+     */
+    public synchronized void onBlurCompleted(long blurNanos) {
+        if (mCompletedCount == 0) {
+            mAverageBlurNanos = blurNanos;
+        } else {
+            mAverageBlurNanos += AVERAGE_WEIGHT * (blurNanos - mAverageBlurNanos);
+        }
+        mCompletedCount++;
+    }
+
+    /**
+     * Records a blur that was stopped because its request was canceled. The time saved is
+     * estimated as the average blur time less the time already spent.
+     * @param spentNanos How long it ran before it stopped.
+     */
+    public synchronized void onBlurCanceled(long spentNanos) {
+        mCanceledInProgressCount++;
+        mCanceledSpentNanos += spentNanos;
+        if (mCompletedCount > 0) {
+            mCanceledSavedNanos += Math.max(0, (long) mAverageBlurNanos - spentNanos);
+        }
+    }
+
+    /**
+     * Records a request that was dropped before blurring because its deadline had passed.
+     */
+    public synchronized void onDroppedLate() {
+        mDroppedLateCount++;
+    }
+
+    /**
+     * Records a blur that was stopped part way because its deadline passed.
+     * @param spentNanos How long it ran before it stopped.
+     */
+    public synchronized void onBlurAbortedLate(long spentNanos) {
+        mAbortedLateCount++;
+        mAbortedLateSpentNanos += spentNanos;
+    }
+
+    /**
+     * Records a request that was dropped, or turned away, because the queue was full.
+     */
+    public synchronized void onDroppedFull() {
+        mDroppedFullCount++;
+    }
+
+    /**
+     * Records the number of requests waiting in the queue after one was added.
+     */
+    public synchronized void onQueueDepth(int depth) {
+        if (depth > mPeakQueueDepth) {
+            mPeakQueueDepth = depth;
+        }
+    }
+
+    /**
+     * Returns the number of blurs that ran to completion.
+     */
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    /**
+     * Returns the number of blurs that were stopped part way because their request was
+     * canceled.
+     */
+    public synchronized long getCanceledInProgressCount() {
+        return mCanceledInProgressCount;
+    }
+
+    /**
+     * Returns the time spent on blurs that were canceled part way, in milliseconds.
+     */
+    public synchronized long getCanceledSpentMs() {
+        return mCanceledSpentNanos / 1000000;
+    }
+
+    /**
+     * Returns an estimate of the CPU time saved by stopping canceled blurs early rather
+     * than running them to completion, in milliseconds.
+     */
+    public synchronized long getCpuTimeSavedMs() {
+        return mCanceledSavedNanos / 1000000;
+    }
+
+    /**
+     * Returns the number of requests dropped before blurring because their deadline had
+     * passed.
+     */
+    public synchronized long getDroppedLateCount() {
+        return mDroppedLateCount;
+    }
+
+    /**
+     * Returns the number of blurs stopped part way because their deadline passed.
+     */
+    public synchronized long getAbortedLateCount() {
+        return mAbortedLateCount;
+    }
+
+    /**
+     * Returns the time spent on blurs that were stopped because their deadline passed,
+     * in milliseconds. This is the work that was wasted despite the deadline.
+     */
+    public synchronized long getAbortedLateSpentMs() {
+        return mAbortedLateSpentNanos / 1000000;
+    }
+
+    /**
+     * Returns the number of requests dropped, or turned away, because the queue was full.
+     */
+    public synchronized long getDroppedFullCount() {
+        return mDroppedFullCount;
+    }
+
+    /**
+     * Returns the largest number of requests seen waiting in the queue; useful for picking
+     * a capacity.
+     */
+    public synchronized int getPeakQueueDepth() {
+        return mPeakQueueDepth;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "completed=" + mCompletedCount
+                + " canceledInProgress=" + mCanceledInProgressCount
+                + " canceledSpentMs=" + (mCanceledSpentNanos / 1000000)
+                + " cpuTimeSavedMs=" + (mCanceledSavedNanos / 1000000)
+                + " droppedLate=" + mDroppedLateCount
+                + " abortedLate=" + mAbortedLateCount
+                + " abortedLateSpentMs=" + (mAbortedLateSpentNanos / 1000000)
+                + " droppedFull=" + mDroppedFullCount
+                + " peakQueueDepth=" + mPeakQueueDepth;
+    }
+}
@@ -0,0 +1,196 @@
+package com.android.fancyblurdemo.app.imageblur;
+
+import android.content.SharedPreferences;
+
+import com.android.fancyblurdemo.volley.VolleyLog;
+
+import java.util.Arrays;
+
+/**
+ * Picks the blur quality for this device from measured blur times.
+ *
+ * Quality levels trade the downsize factor against the radius so the blur covers
+ * roughly the same area of the source image at every level; higher levels simply
+ * blur more pixels. The controller records how long every blurred request spent
+ * between its "blur-cache-miss" and "blur-image-complete" markers, and keeps the
+ * highest level whose 95th percentile blur time stays under the budget. The chosen
+ * level is saved so the next launch starts from it.
+ *
+ * Samples are reported by {@link BlurQueue} when a request finishes; specs are
+ * adjusted by {@link ImageBlurrer} when a request is issued.
+ */
+public class BlurQualityController {
+
+    /** Default p95 blur time budget. */
+    public static final long DEFAULT_BUDGET_MS = 40;
+
+    /** Preference holding the selected level. */
+    private static final String PREF_LEVEL = "blur_quality_level";
+
+    /** Downsize factor of each level, from cheapest to best. */
+    private static final float[] LEVEL_SCALE_FACTORS = { 16, 8, 6, 4 };
+
+    /** Blur radius of each level; scale times radius stays about 16 source pixels. */
+    private static final int[] LEVEL_RADII = { 1, 2, 3, 4 };
+
+    /** The level matching {@link BlurSpec#DEFAULT}, used until we know better. */
+    private static final int DEFAULT_LEVEL = 1;
+
+    /** Number of recent samples kept per level. */
+    private static final int WINDOW_SIZE = 40;
+
+    /**
+     * Number of samples a level needs before its percentile is trusted. With fewer
+     * than 20 the 95th percentile is simply the slowest sample.
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /** Samples after which a level that was measured over budget is tried again. */
+    private static final int RETRY_INTERVAL = 200;
+
+    private final SharedPreferences mPrefs;
+
+    /** The p95 budget in milliseconds. */
+    private long mBudgetMs;
+
+    /** The currently selected level. */
+    private int mLevel;
+
+    /** Recent blur times of each level, used as ring buffers. */
+    private final long[][] mSamples = new long[LEVEL_SCALE_FACTORS.length][WINDOW_SIZE];
+
+    /** Number of samples recorded for each level, capped at {@link #WINDOW_SIZE}. */
+    private final int[] mSampleCounts = new int[LEVEL_SCALE_FACTORS.length];
+
+    /** Next slot to write in each ring buffer. */
+    private final int[] mNextSample = new int[LEVEL_SCALE_FACTORS.length];
+
+    /** Samples recorded since the level last changed. */
+    private int mSamplesSinceChange;
+
+    /** Scratch buffer for computing percentiles. */
+    private final long[] mSorted = new long[WINDOW_SIZE];
+
+    /**
+     * @param prefs Where the selected level is persisted.
+     * @param budgetMs The p95 blur time budget in milliseconds.
+     */
+    public BlurQualityController(SharedPreferences prefs, long budgetMs) {
+        mPrefs = prefs;
+        mBudgetMs = budgetMs;
+        int level = prefs.getInt(PREF_LEVEL, DEFAULT_LEVEL);
+        mLevel = Math.max(0, Math.min(LEVEL_SCALE_FACTORS.length - 1, level));
+    }
+
+    /**
+     * Sets the p95 blur time budget. The level adapts as new samples arrive.
+     */
+    public synchronized void setBudgetMs(long budgetMs) {
+        mBudgetMs = budgetMs;
+    }
+
+    /**
+     * Returns the currently selected quality level; 0 is the cheapest.
+     */
+    public synchronized int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Returns the given spec with the scale factor and radius of the selected level.
+     * The pixel format, algorithm and pyramid levels are kept.
+     */
+    public synchronized BlurSpec adjust(BlurSpec spec) {
+        float scaleFactor = LEVEL_SCALE_FACTORS[mLevel];
+        int radius = LEVEL_RADII[mLevel];
+        if (spec.scaleFactor == scaleFactor && spec.radius == radius) {
+            return spec;
+        }
+        return new BlurSpec(scaleFactor, radius, spec.config, spec.algorithm, spec.pyramidLevels);
+    }
+
+    /**
+     * Records the blur time of a finished request. Requests that were served from the
+     * cache, or whose spec does not belong to a level, are ignored.
+     */
+    public synchronized void onRequestFinished(BlurRequest request) {
+        long blurTimeMs = request.getBlurTimeMs();
+        if (blurTimeMs < 0) {
+            return;
+        }
+        int level = findLevel(request.getBlurSpec());
+        if (level < 0) {
+            return;
+        }
+
+        mSamples[level][mNextSample[level]] = blurTimeMs;
+        mNextSample[level] = (mNextSample[level] + 1) % WINDOW_SIZE;
+        if (mSampleCounts[level] < WINDOW_SIZE) {
+            mSampleCounts[level]++;
+        }
+
+        if (level == mLevel) {
+            mSamplesSinceChange++;
+            updateLevel();
+        }
+    }
+
+    /**
+     * Steps down when the current level is over budget, and up when the next level is
+     * expected to fit. A level that was measured over budget is only tried again after
+     * {@link #RETRY_INTERVAL} samples, so a slow spell does not pin the quality down for
+     * good but the level does not flap either.
+     */
+    private void updateLevel() {
+        if (mSampleCounts[mLevel] < MIN_SAMPLES) {
+            return;
+        }
+        long p95 = getP95(mLevel);
+        int newLevel = mLevel;
+        if (p95 > mBudgetMs) {
+            if (mLevel > 0) {
+                newLevel = mLevel - 1;
+            }
+        } else if (mLevel + 1 < LEVEL_SCALE_FACTORS.length) {
+            int next = mLevel + 1;
+            // Blur time grows with the number of downsized pixels.
+            float ratio = LEVEL_SCALE_FACTORS[mLevel] / LEVEL_SCALE_FACTORS[next];
+            boolean nextKnownSlow = mSampleCounts[next] >= MIN_SAMPLES && getP95(next) > mBudgetMs;
+            if (nextKnownSlow && mSamplesSinceChange >= RETRY_INTERVAL) {
+                clearSamples(next);
+                nextKnownSlow = false;
+            }
+            if (!nextKnownSlow && p95 * ratio * ratio <= mBudgetMs) {
+                newLevel = next;
+            }
+        }
+
+        if (newLevel != mLevel) {
+            VolleyLog.d("Blur quality %d -> %d (p95 %d ms, budget %d ms)", mLevel, newLevel, p95, mBudgetMs);
+            mLevel = newLevel;
+            mSamplesSinceChange = 0;
+            mPrefs.edit().putInt(PREF_LEVEL, newLevel).apply();
+        }
+    }
+
+    private void clearSamples(int level) {
+        mSampleCounts[level] = 0;
+        mNextSample[level] = 0;
+    }
+
+    private long getP95(int level) {
+        int count = mSampleCounts[level];
+        System.arraycopy(mSamples[level], 0, mSorted, 0, count);
+        Arrays.sort(mSorted, 0, count);
+        return mSorted[(int) Math.ceil(0.95 * count) - 1];
+    }
+
+    private static int findLevel(BlurSpec spec) {
+        for (int level = 0; level < LEVEL_SCALE_FACTORS.length; level++) {
+            if (spec.scaleFactor == LEVEL_SCALE_FACTORS[level] && spec.radius == LEVEL_RADII[level]) {
+                return level;
+            }
+        }
+        return -1;
+    }
+}
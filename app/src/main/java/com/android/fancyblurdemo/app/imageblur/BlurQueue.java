@@ -1,13 +1,19 @@
 package com.android.fancyblurdemo.app.imageblur;
 
+import android.graphics.Bitmap;
 import android.media.RemoteControlClient;
 import android.os.Handler;
 import android.os.Looper;
 
+import com.android.fancyblurdemo.blurkernel.StackBlur;
 import com.android.fancyblurdemo.volley.Cache;
 import com.android.fancyblurdemo.volley.toolbox.ImageLoader;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -17,6 +23,24 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class BlurQueue {
 
+    /** Number of blur dispatcher threads to start by default. */
+    private static final int DEFAULT_BLUR_THREAD_POOL_SIZE = 2;
+
+    /** Capacity of a queue that never turns requests away. */
+    public static final int UNBOUNDED = 0;
+
+    /** When the queue is full, the oldest queued request is dropped to make room. */
+    public static final int OVERFLOW_DROP_OLDEST = 0;
+
+    /**
+     * When the queue is full, the request furthest from the current page is dropped, which
+     * is the new request itself if nothing queued is further away.
+     */
+    public static final int OVERFLOW_DROP_LOWEST_PRIORITY = 1;
+
+    /** When the queue is full, the new request is turned away. */
+    public static final int OVERFLOW_REJECT = 2;
+
     /** Used for generating monotonically-increasing sequence numbers for requests. */
     private AtomicInteger mSequenceGenerator = new AtomicInteger();
 
@@ -37,35 +61,229 @@ public class BlurQueue {
     /** Response delivery mechanism. */
     private final BlurResponseDelivery mDelivery;
 
-    /** The cache dispatcher. */
-    private BlurDispatcher mBlurDispatcher;
+    /** Counters shared by all dispatchers. */
+    private final BlurMetrics mMetrics = new BlurMetrics();
 
-    public BlurQueue(ImageLoader.ImageCache cache, BlurResponseDelivery delivery) {
+    /**
+     * The blur dispatchers. They share the request queue, and each has its own scratch
+     * buffers.
+     */
+    private BlurDispatcher[] mDispatchers;
+
+    /** The blur mode handed to the dispatchers. */
+    private int mBlurMode = BlurDispatcher.MODE_SERIAL;
+
+    /** The parallel threshold handed to the dispatchers. */
+    private int mParallelThreshold = BlurDispatcher.DEFAULT_PARALLEL_THRESHOLD;
+
+    /** The stack blur kernel handed to the dispatchers. */
+    private int mKernel = StackBlur.KERNEL_REFERENCE;
+
+    /** Guards the distances of queued requests against a concurrent re-prioritization. */
+    private final Object mPriorityLock = new Object();
+
+    /** The page currently on screen; requests are blurred nearest to it first. */
+    private int mCurrentPosition = 0;
+
+    /** Maximum number of queued requests, or {@link #UNBOUNDED}. */
+    private int mCapacity = UNBOUNDED;
+
+    /** What happens to a request added to a full queue. */
+    private int mOverflowPolicy = OVERFLOW_DROP_LOWEST_PRIORITY;
+
+    /** Told about every finished request, if set. */
+    private volatile BlurQualityController mQualityController;
+
+    /**
+     * Creates the blur queue. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for reading and writing blurred images
+     * @param threadPoolSize Number of blur dispatcher threads to create
+     * @param delivery A BlurResponseDelivery interface for posting responses and errors
+     */
+    public BlurQueue(ImageLoader.ImageCache cache, int threadPoolSize, BlurResponseDelivery delivery) {
         mBlurCache = cache;
+        mDispatchers = new BlurDispatcher[threadPoolSize];
         mDelivery = delivery;
     }
 
+    /**
+     * Creates the blur queue, delivering responses on the main thread.
+     *
+     * @param cache A Cache to use for reading and writing blurred images
+     * @param threadPoolSize Number of blur dispatcher threads to create
+     */
+    public BlurQueue(ImageLoader.ImageCache cache, int threadPoolSize) {
+        this(cache, threadPoolSize, new BlurResponseDelivery(new Handler(Looper.getMainLooper())));
+    }
+
+    public BlurQueue(ImageLoader.ImageCache cache, BlurResponseDelivery delivery) {
+        this(cache, DEFAULT_BLUR_THREAD_POOL_SIZE, delivery);
+    }
+
     public BlurQueue(ImageLoader.ImageCache cache) {
-        this(cache, new BlurResponseDelivery(new Handler(Looper.getMainLooper())));
+        this(cache, DEFAULT_BLUR_THREAD_POOL_SIZE);
     }
 
     /**
-     * Starts the dispatcher in this queue.
+     * Starts the dispatchers in this queue.
      */
     public void start() {
         stop(); // Make sure any currently running dispatchers are stopped.
-        // Create the blur dispatcher and start it.
-        mBlurDispatcher = new BlurDispatcher(mBlurQueue, mBlurCache, mDelivery);
-        mBlurDispatcher.start();
+        // Create blur dispatchers (and corresponding threads) up to the pool size.
+        for (int i = 0; i < mDispatchers.length; i++) {
+            BlurDispatcher blurDispatcher = new BlurDispatcher(mBlurQueue, mBlurCache, mDelivery, mMetrics);
+            blurDispatcher.setBlurMode(mBlurMode, mParallelThreshold);
+            blurDispatcher.setKernel(mKernel);
+            mDispatchers[i] = blurDispatcher;
+            blurDispatcher.start();
+        }
     }
 
     /**
-     * Stops the blur dispatcher.
+     * Stops the blur dispatchers. A dispatcher that is blurring finishes that request
+     * first; requests still in the queue stay there until the next {@link #start()}.
      */
     public void stop() {
-        if (mBlurDispatcher != null) {
-            mBlurDispatcher.quit();
+        for (int i = 0; i < mDispatchers.length; i++) {
+            if (mDispatchers[i] != null) {
+                mDispatchers[i].quit();
+                mDispatchers[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of blur dispatcher threads this queue runs.
+     */
+    public int getThreadPoolSize() {
+        return mDispatchers.length;
+    }
+
+    /**
+     * Selects serial or parallel blurring for this queue's dispatchers. With several
+     * dispatchers busy at once the band pool is shared between them, and bands that do not
+     * fit run on the dispatcher's own thread.
+     * @param blurMode Either {@link BlurDispatcher#MODE_SERIAL} or {@link BlurDispatcher#MODE_PARALLEL}.
+     * @param parallelThreshold Images with fewer pixels than this are always blurred serially.
+     */
+    public void setBlurMode(int blurMode, int parallelThreshold) {
+        mBlurMode = blurMode;
+        mParallelThreshold = parallelThreshold;
+        for (BlurDispatcher dispatcher : mDispatchers) {
+            if (dispatcher != null) {
+                dispatcher.setBlurMode(blurMode, parallelThreshold);
+            }
+        }
+    }
+
+    /**
+     * Selects the stack blur kernel for this queue's dispatchers.
+     * @param kernel Either {@link StackBlur#KERNEL_REFERENCE} or {@link StackBlur#KERNEL_PACKED}.
+     */
+    public void setKernel(int kernel) {
+        mKernel = kernel;
+        for (BlurDispatcher dispatcher : mDispatchers) {
+            if (dispatcher != null) {
+                dispatcher.setKernel(kernel);
+            }
+        }
+    }
+
+    /**
+     * Sets the controller that is told about the blur time of every finished request.
+     * @param controller The controller, or null for none.
+     */
+    public void setQualityController(BlurQualityController controller) {
+        mQualityController = controller;
+    }
+
+    /**
+     * Limits the number of requests waiting to be blurred. Every queued request holds on
+     * to its source bitmap, so a burst of requests can otherwise pin a lot of memory.
+     * Requests already being blurred do not count. A request that does not fit gets a
+     * {@link BlurQueueFullError}; shrinking the capacity does not drop anything already
+     * queued.
+     *
+     * @param capacity The maximum number of queued requests, or {@link #UNBOUNDED}.
+     * @param overflowPolicy One of {@link #OVERFLOW_DROP_OLDEST},
+     *        {@link #OVERFLOW_DROP_LOWEST_PRIORITY} or {@link #OVERFLOW_REJECT}.
+     */
+    public void setCapacity(int capacity, int overflowPolicy) {
+        synchronized (mPriorityLock) {
+            mCapacity = capacity;
+            mOverflowPolicy = overflowPolicy;
+        }
+    }
+
+    /**
+     * Returns the maximum number of queued requests, or {@link #UNBOUNDED}.
+     */
+    public int getCapacity() {
+        synchronized (mPriorityLock) {
+            return mCapacity;
+        }
+    }
+
+    /**
+     * Returns the number of requests waiting to be blurred.
+     */
+    public int getQueueDepth() {
+        return mBlurQueue.size();
+    }
+
+    /**
+     * Returns the bytes of source bitmaps held by requests waiting to be blurred. A bitmap
+     * shared by several requests is counted once. Requests that blur an encoded image from
+     * a cache hold no pixels until they are taken.
+     */
+    public long getQueuedBitmapBytes() {
+        Set<Bitmap> counted = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+        long bytes = 0;
+        // The iterator works on a snapshot, so this does not block the dispatchers.
+        for (BlurRequest request : mBlurQueue) {
+            Bitmap bitmap = request.getBitmap();
+            if (bitmap != null && counted.add(bitmap)) {
+                bytes += bitmap.getByteCount();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Releases the scratch buffers of every dispatcher. A dispatcher that is blurring
+     * releases its buffers when the blur is done.
+     *
+     * @return The bytes released now.
+     */
+    public long releaseScratchBuffers() {
+        long bytes = 0;
+        for (BlurDispatcher dispatcher : mDispatchers) {
+            if (dispatcher != null) {
+                bytes += dispatcher.releaseWorkspace();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops every request waiting to be blurred, for example when memory is low. Each
+     * gets a {@link BlurError}, so its callers stop waiting for it; blurs in progress
+     * are left to finish.
+     *
+     * @return The bytes of source bitmaps the dropped requests held.
+     */
+    public long dropQueued() {
+        long bytes = getQueuedBitmapBytes();
+        List<BlurRequest> dropped = new ArrayList<BlurRequest>();
+        synchronized (mPriorityLock) {
+            mBlurQueue.drainTo(dropped);
+        }
+        for (BlurRequest request : dropped) {
+            request.addMarker("blur-discard-low-memory");
+            mDelivery.postError(request, new BlurError("Dropped because memory is low"));
         }
+        return dropped.isEmpty() ? 0 : bytes;
     }
 
     /**
@@ -81,15 +299,102 @@ public class BlurQueue {
             mCurrentRequests.add(request);
         }
 
-        // Process the requests in the order they are added.
+        // Newer requests go first among requests at the same distance.
         request.setSequence(getSequenceNumber());
         request.addMarker("add-to-queue");
 
-        // Add the request to the queue.
-        mBlurQueue.add(request);
+        // Add the request to the queue, making room for it first if the queue is full.
+        BlurRequest dropped = null;
+        synchronized (mPriorityLock) {
+            request.setDistance(getDistance(request));
+            if (mCapacity != UNBOUNDED && mBlurQueue.size() >= mCapacity) {
+                dropped = makeRoom(request);
+            }
+            if (dropped != request) {
+                mBlurQueue.add(request);
+            }
+            mMetrics.onQueueDepth(mBlurQueue.size());
+        }
+        if (dropped != null) {
+            mMetrics.onDroppedFull();
+            dropped.addMarker("blur-discard-full");
+            mDelivery.postError(dropped, new BlurQueueFullError(dropped == request
+                    ? "Blur queue full" : "Dropped from a full blur queue"));
+        }
         return request;
     }
 
+    /**
+     * Picks the request to drop so a new one fits in the full queue, and takes it out of the
+     * queue. Must be called with {@link #mPriorityLock} held.
+     * @param request The request being added.
+     * @return The dropped request, which is the new one if it should not be queued.
+     */
+    private BlurRequest makeRoom(BlurRequest request) {
+        if (mOverflowPolicy == OVERFLOW_REJECT) {
+            return request;
+        }
+        while (mBlurQueue.size() >= mCapacity) {
+            BlurRequest victim = null;
+            for (BlurRequest queued : mBlurQueue) {
+                if (victim == null) {
+                    victim = queued;
+                } else if (mOverflowPolicy == OVERFLOW_DROP_OLDEST) {
+                    if (queued.getSequence() < victim.getSequence()) {
+                        victim = queued;
+                    }
+                } else if (queued.compareTo(victim) > 0) {
+                    victim = queued;
+                }
+            }
+            if (victim == null) {
+                // Shrunk to zero while we looked; there is room now.
+                return null;
+            }
+            if (mOverflowPolicy == OVERFLOW_DROP_LOWEST_PRIORITY && request.compareTo(victim) > 0) {
+                // Everything queued is more urgent than the new request.
+                return request;
+            }
+            // A dispatcher may have taken the victim meanwhile, which also makes room.
+            if (mBlurQueue.remove(victim)) {
+                return victim;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tells the queue which page is on screen. Queued requests are re-prioritized so the
+     * blurs nearest to that page run next.
+     * @param position The current page position.
+     */
+    public void setCurrentPosition(int position) {
+        synchronized (mPriorityLock) {
+            if (position == mCurrentPosition) {
+                return;
+            }
+            mCurrentPosition = position;
+            // The priority queue cannot reorder requests in place, so take them all out,
+            // update their distances and put them back.
+            List<BlurRequest> queued = new ArrayList<BlurRequest>();
+            mBlurQueue.drainTo(queued);
+            for (BlurRequest request : queued) {
+                request.setDistance(getDistance(request));
+            }
+            mBlurQueue.addAll(queued);
+        }
+    }
+
+    /**
+     * Returns how far a request's page is from the current page.
+     */
+    private int getDistance(BlurRequest request) {
+        if (request.getPosition() == BlurRequest.NO_POSITION) {
+            return 0;
+        }
+        return Math.abs(request.getPosition() - mCurrentPosition);
+    }
+
     /**
      * Called from {@link BlurRequest#finish(String)},
      * indicating that the processing of the given request has finished.
@@ -99,6 +404,17 @@ public class BlurQueue {
         synchronized (mCurrentRequests) {
             mCurrentRequests.remove(request);
         }
+        BlurQualityController controller = mQualityController;
+        if (controller != null) {
+            controller.onRequestFinished(request);
+        }
+    }
+
+    /**
+     * Returns the counters kept by this queue's dispatchers.
+     */
+    public BlurMetrics getMetrics() {
+        return mMetrics;
     }
 
     public ImageLoader.ImageCache getCache() {
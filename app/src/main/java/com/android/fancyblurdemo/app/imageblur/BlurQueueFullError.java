@@ -0,0 +1,16 @@
+package com.android.fancyblurdemo.app.imageblur;
+
+/**
+ * Indicates that a request was turned away, or dropped from the queue, because the
+ * {@link BlurQueue} was at its capacity. The image was not blurred; blurring it again
+ * queues a new request.
+ */
+@SuppressWarnings("serial")
+public class BlurQueueFullError extends BlurError {
+
+    public BlurQueueFullError() {}
+
+    public BlurQueueFullError(String exceptionMessage) {
+        super(exceptionMessage);
+    }
+}
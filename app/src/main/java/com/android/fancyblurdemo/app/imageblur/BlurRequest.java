@@ -6,6 +6,7 @@ import android.os.Looper;
 import android.os.SystemClock;
 import android.view.View;
 
+import com.android.fancyblurdemo.volley.Cache;
 import com.android.fancyblurdemo.volley.VolleyLog;
 
 import java.util.ArrayList;
@@ -16,15 +17,27 @@ import java.util.List;
  */
 public class BlurRequest implements Comparable<BlurRequest> {
 
+    /** Position of a request that is not tied to a page; it is as urgent as the current page. */
+    public static final int NO_POSITION = -1;
+
     /** Threshold at which we should log the request (even when debug logging is not enabled). */
     private static final long SLOW_REQUEST_THRESHOLD_MS = 3000;
 
     /** An event log tracing the lifetime of this request; for debugging. */
     private final MarkerLog mEventLog = MarkerLog.ENABLED ? new MarkerLog() : null;
 
-    /** Sequence number of this request, used to enforce FIFO ordering. */
+    /** Sequence number of this request, used to enforce LIFO ordering within a distance. */
     private Integer mSequence;
 
+    /** Page position of the image, or {@link #NO_POSITION}. */
+    private int mPosition = NO_POSITION;
+
+    /** Distance from the current page, assigned by the {@link BlurQueue}. */
+    private int mDistance = 0;
+
+    /** When the blur stops being useful, in {@link SystemClock#elapsedRealtime()} time; 0 for never. */
+    private long mDeadlineMs = 0;
+
     /** The blur queue this request is associated with. */
     private BlurQueue mBlurQueue;
 
@@ -37,11 +50,23 @@ public class BlurRequest implements Comparable<BlurRequest> {
     /** The bitmap to blur. We must be careful with memory here. */
     private Bitmap mBitmap;
 
+    /** The encoded image to blur instead of the bitmap, if known. */
+    private byte[] mEncodedImage;
+
+    /** Cache holding the encoded image, read on the dispatcher thread. */
+    private Cache mEncodedImageCache;
+
+    /** Key of the encoded image in {@link #mEncodedImageCache}. */
+    private String mEncodedImageKey;
+
     /** The cache key associated with the bitmap. */
     private String mCacheKey;
 
-    /** Whether or not this request has been canceled. */
-    private boolean mCanceled = false;
+    /**
+     * Whether or not this request has been canceled. Set on the main thread and polled
+     * by the dispatcher while it blurs.
+     */
+    private volatile boolean mCanceled = false;
 
     /** Whether or not a response has been delivered for this request yet. */
     private boolean mResponseDelivered = false;
@@ -49,6 +74,10 @@ public class BlurRequest implements Comparable<BlurRequest> {
     // A cheap variant of request tracing used to dump slow requests.
     private long mRequestBirthTime = 0;
 
+    /** When the blur started and completed, in nanoseconds; 0 until the marker is added. */
+    private long mBlurStartNanos = 0;
+    private long mBlurEndNanos = 0;
+
     /**
      * Pixel metrics associated with the view.
      * Used if we are only blurring part of a bitmap.
@@ -58,6 +87,9 @@ public class BlurRequest implements Comparable<BlurRequest> {
     private int mLeftPosition = 0;
     private int mTopPosition = 0;
 
+    /** How the bitmap is blurred. */
+    private BlurSpec mBlurSpec = BlurSpec.DEFAULT;
+
     public BlurRequest(Bitmap bitmap, String cacheKey, BlurResponse.Listener listener, BlurResponse.ErrorListener errorListener) {
         this(bitmap, cacheKey, listener, errorListener, 0, 0, 0, 0);
     }
@@ -105,6 +137,49 @@ public class BlurRequest implements Comparable<BlurRequest> {
         return  mBitmap;
     }
 
+    /**
+     * Blurs the given encoded image instead of the bitmap. The image is decoded straight
+     * to about the blurred size, so the full size image is never decoded. If the image
+     * cannot be decoded the bitmap is blurred instead, if there is one.
+     *
+     * @param encodedImage The encoded image, for example a JPEG.
+     * @return This Request object to allow for chaining.
+     */
+    public BlurRequest setEncodedImage(byte[] encodedImage) {
+        mEncodedImage = encodedImage;
+        return this;
+    }
+
+    /**
+     * Blurs the encoded image stored in a Volley cache instead of the bitmap. The entry is
+     * read by the dispatcher, off the main thread. If it has been evicted the bitmap is
+     * blurred instead, if there is one.
+     *
+     * @param cache The cache, normally the one of the Volley request queue.
+     * @param key The key of the entry, which is the image url for Volley image requests.
+     * @return This Request object to allow for chaining.
+     */
+    public BlurRequest setEncodedImage(Cache cache, String key) {
+        mEncodedImageCache = cache;
+        mEncodedImageKey = key;
+        return this;
+    }
+
+    /**
+     * Returns the encoded image to blur, reading it from its cache if needed. Only call this
+     * off the main thread.
+     * @return The encoded image, or null if there is none.
+     */
+    public byte[] getEncodedImage() {
+        if (mEncodedImage == null && mEncodedImageCache != null) {
+            Cache.Entry entry = mEncodedImageCache.get(mEncodedImageKey);
+            if (entry != null) {
+                return entry.data;
+            }
+        }
+        return mEncodedImage;
+    }
+
     /**
      * Returns true if the request has been canceled.
      * @return True if canceled.
@@ -114,7 +189,8 @@ public class BlurRequest implements Comparable<BlurRequest> {
     }
 
     /**
-     * Marks the request as canceled. No callback will be delivered.
+     * Marks the request as canceled. No callback will be delivered, and a blur in
+     * progress stops within a few rows.
      */
     public void cancel() {
         mCanceled = true;
@@ -136,10 +212,90 @@ public class BlurRequest implements Comparable<BlurRequest> {
         return mTopPosition;
     }
 
+    /**
+     * Sets how the bitmap is blurred.
+     *
+     * @param blurSpec The blur spec.
+     * @return This Request object to allow for chaining.
+     */
+    public BlurRequest setBlurSpec(BlurSpec blurSpec) {
+        mBlurSpec = blurSpec;
+        return this;
+    }
+
+    /**
+     * Returns how the bitmap is blurred.
+     */
+    public BlurSpec getBlurSpec() {
+        return mBlurSpec;
+    }
+
+    /**
+     * Sets the page position of the image, so the queue can blur the pages closest to the
+     * one on screen first.
+     *
+     * @param position The page position, or {@link #NO_POSITION}.
+     * @return This Request object to allow for chaining.
+     */
+    public BlurRequest setPosition(int position) {
+        mPosition = position;
+        return this;
+    }
+
+    /**
+     * Returns the page position of the image, or {@link #NO_POSITION}.
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Sets when the blur stops being useful, for example when its page scrolls away. A
+     * request whose deadline has passed is still served from the blurred image cache, but
+     * otherwise it is dropped, or stopped part way if it is being blurred, and gets a
+     * {@link BlurDeadlineError}.
+     *
+     * @param deadlineMs A {@link SystemClock#elapsedRealtime()} time, or 0 for no deadline.
+     * @return This Request object to allow for chaining.
+     */
+    public BlurRequest setDeadline(long deadlineMs) {
+        mDeadlineMs = deadlineMs;
+        return this;
+    }
+
+    /**
+     * Returns the deadline in {@link SystemClock#elapsedRealtime()} time, or 0 for none.
+     */
+    public long getDeadline() {
+        return mDeadlineMs;
+    }
+
+    /**
+     * Returns true if the request has a deadline and it has passed.
+     */
+    public boolean isPastDeadline() {
+        return mDeadlineMs != 0 && SystemClock.elapsedRealtime() > mDeadlineMs;
+    }
+
+    /**
+     * Sets the distance from the current page. Only call this while the request is not in
+     * the priority queue, since it changes the ordering.  Used by {@link BlurQueue}.
+     */
+    void setDistance(int distance) {
+        mDistance = distance;
+    }
+
     /**
      * Adds an event to this request's event log; for debugging.
      */
     public void addMarker(String tag) {
+        // The blur timing is always recorded, even when the event log is disabled,
+        // since the quality controller depends on it.
+        if ("blur-cache-miss".equals(tag)) {
+            mBlurStartNanos = System.nanoTime();
+        } else if ("blur-image-complete".equals(tag)) {
+            mBlurEndNanos = System.nanoTime();
+        }
         if (MarkerLog.ENABLED) {
             mEventLog.add(tag, Thread.currentThread().getId());
         } else if (mRequestBirthTime == 0) {
@@ -147,6 +303,17 @@ public class BlurRequest implements Comparable<BlurRequest> {
         }
     }
 
+    /**
+     * Returns the time between the "blur-cache-miss" and "blur-image-complete" markers
+     * in milliseconds, or -1 if the request was not blurred.
+     */
+    public long getBlurTimeMs() {
+        if (mBlurStartNanos == 0 || mBlurEndNanos == 0) {
+            return -1;
+        }
+        return (mBlurEndNanos - mBlurStartNanos) / 1000000;
+    }
+
     /**
      * Sets the sequence number of this request.  Used by {@link BlurQueue}.
      *
@@ -241,17 +408,21 @@ public class BlurRequest implements Comparable<BlurRequest> {
     }
 
     /**
-     * Our comparator sorts by
-     * sequence number to provide FIFO ordering.
+     * Our comparator sorts by distance from the current page, nearest first,
+     * then by sequence number to provide LIFO ordering. The newest request is the
+     * one for the page the user just landed on.
      */
     @Override
     public int compareTo(BlurRequest another) {
-        return this.mSequence - another.mSequence;
+        if (this.mDistance != another.mDistance) {
+            return this.mDistance < another.mDistance ? -1 : 1;
+        }
+        return another.mSequence - this.mSequence;
     }
 
     @Override
     public String toString() {
-        return (mCanceled ? "[X] " : "[ ] ") + getCacheKey() + " " + mSequence;
+        return (mCanceled ? "[X] " : "[ ] ") + getCacheKey() + " " + mPosition + " " + mSequence;
     }
 
     /**
@@ -0,0 +1,128 @@
+package com.android.fancyblurdemo.app.imageblur;
+
+import android.graphics.Bitmap;
+
+import com.android.fancyblurdemo.blurkernel.BlurPyramid;
+
+/**
+ * Describes how an image is blurred: how far it is downsized, the blur radius and
+ * algorithm, the pixel format of the result and how many pyramid levels to build.
+ *
+ * Specs are immutable. Two requests for the same image with different specs are
+ * cached and coalesced separately.
+ */
+public final class BlurSpec {
+
+    /** Blur with {@link com.android.fancyblurdemo.blurkernel.StackBlur}. */
+    public static final int ALGORITHM_STACK = 0;
+
+    /** Blur with {@link com.android.fancyblurdemo.blurkernel.BoxBlur}; cost does not grow with the radius. */
+    public static final int ALGORITHM_BOX = 1;
+
+    /** The blur the app has always used: downsize by 8, then a stack blur of radius 2. */
+    public static final BlurSpec DEFAULT = new BlurSpec(8, 2);
+
+    /** How many source pixels map onto one downsized pixel in each direction. */
+    public final float scaleFactor;
+
+    /** Blur radius, in downsized pixels. */
+    public final int radius;
+
+    /** Pixel format of the blurred bitmap; either ARGB_8888 or RGB_565. */
+    public final Bitmap.Config config;
+
+    /** Either {@link #ALGORITHM_STACK} or {@link #ALGORITHM_BOX}. */
+    public final int algorithm;
+
+    /** Number of blur pyramid levels; 1 is a plain blurred image. */
+    public final int pyramidLevels;
+
+    /**
+     * Creates an ARGB_8888 stack blur spec without a pyramid.
+     *
+     * @param scaleFactor Downsize factor, at least 1
+     * @param radius Blur radius in downsized pixels, at least 1
+     */
+    public BlurSpec(float scaleFactor, int radius) {
+        this(scaleFactor, radius, Bitmap.Config.ARGB_8888, ALGORITHM_STACK, 1);
+    }
+
+    /**
+     * @param scaleFactor Downsize factor, at least 1
+     * @param radius Blur radius in downsized pixels, at least 1
+     * @param config Either ARGB_8888 or RGB_565
+     * @param algorithm Either {@link #ALGORITHM_STACK} or {@link #ALGORITHM_BOX}
+     * @param pyramidLevels Between 1 and {@link BlurPyramid#MAX_LEVELS}
+     */
+    public BlurSpec(float scaleFactor, int radius, Bitmap.Config config, int algorithm,
+                    int pyramidLevels) {
+        if (scaleFactor < 1) {
+            throw new IllegalArgumentException("scaleFactor must be at least 1");
+        }
+        if (radius < 1) {
+            throw new IllegalArgumentException("radius must be at least 1");
+        }
+        if (config != Bitmap.Config.ARGB_8888 && config != Bitmap.Config.RGB_565) {
+            throw new IllegalArgumentException("config must be ARGB_8888 or RGB_565");
+        }
+        if (algorithm != ALGORITHM_STACK && algorithm != ALGORITHM_BOX) {
+            throw new IllegalArgumentException("unknown algorithm " + algorithm);
+        }
+        if (pyramidLevels < 1 || pyramidLevels > BlurPyramid.MAX_LEVELS) {
+            throw new IllegalArgumentException("pyramidLevels must be between 1 and "
+                    + BlurPyramid.MAX_LEVELS);
+        }
+        this.scaleFactor = scaleFactor;
+        this.radius = radius;
+        this.config = config;
+        this.algorithm = algorithm;
+        this.pyramidLevels = pyramidLevels;
+    }
+
+    /**
+     * Returns a short string that identifies this spec, made only of characters that
+     * are valid in a disk cache key. The scale factor is kept to hundredths.
+     */
+    public String getCacheKeySuffix() {
+        StringBuilder suffix = new StringBuilder();
+        suffix.append('s').append(Math.round(scaleFactor * 100));
+        suffix.append('r').append(radius);
+        suffix.append('a').append(algorithm);
+        suffix.append('p').append(pyramidLevels);
+        if (config == Bitmap.Config.RGB_565) {
+            suffix.append("c565");
+        }
+        return suffix.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BlurSpec)) {
+            return false;
+        }
+        BlurSpec other = (BlurSpec) o;
+        return Float.compare(scaleFactor, other.scaleFactor) == 0
+                && radius == other.radius
+                && config == other.config
+                && algorithm == other.algorithm
+                && pyramidLevels == other.pyramidLevels;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Float.floatToIntBits(scaleFactor);
+        result = 31 * result + radius;
+        result = 31 * result + config.hashCode();
+        result = 31 * result + algorithm;
+        result = 31 * result + pyramidLevels;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return getCacheKeySuffix();
+    }
+}
@@ -74,8 +74,8 @@ public class DiskLruImageCache implements ImageLoader.ImageCache {
             }
 
             if( writeBitmapToFile( data, editor ) ) {
-                mDiskCache.flush();
                 editor.commit();
+                editor = null;  // committed; nothing left to abort
                 if ( BuildConfig.DEBUG ) {
                     Log.d("cache_test_DISK_", "image put on disk cache " + key);
                 }
@@ -101,6 +101,16 @@ public class DiskLruImageCache implements ImageLoader.ImageCache {
 
     @Override
     public Bitmap getBitmap( String key ) {
+        return getBitmap( key, null );
+    }
+
+    /**
+     * Reads a bitmap from the disk cache, decoding it into the given pixel format.
+     * @param key The cache key.
+     * @param config The preferred config, or null for the decoder's default.
+     * @return The bitmap, or null if it is not cached.
+     */
+    public Bitmap getBitmap( String key, Bitmap.Config config ) {
 
         Bitmap bitmap = null;
         DiskLruCache.Snapshot snapshot = null;
@@ -114,7 +124,12 @@ public class DiskLruImageCache implements ImageLoader.ImageCache {
             if ( in != null ) {
                 final BufferedInputStream buffIn =
                         new BufferedInputStream( in, IO_BUFFER_SIZE );
-                bitmap = BitmapFactory.decodeStream(buffIn);
+                BitmapFactory.Options options = null;
+                if ( config != null ) {
+                    options = new BitmapFactory.Options();
+                    options.inPreferredConfig = config;
+                }
+                bitmap = BitmapFactory.decodeStream(buffIn, null, options);
             }
         } catch ( IOException e ) {
             e.printStackTrace();
@@ -3,8 +3,12 @@ package com.android.fancyblurdemo.app.imageblur;
 import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.view.View;
 
+import com.android.fancyblurdemo.volley.Cache;
+import com.android.fancyblurdemo.volley.toolbox.ImageLoader;
+
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.UUID;
@@ -17,6 +21,9 @@ public class ImageBlurrer {
     /** BlurQueue for dispatching BlurRequests onto. */
     private final BlurQueue mBlurQueue;
 
+    /** Memory cache of blurred images, checked before a request is queued; may be null. */
+    private final ImageLoader.ImageCache mMemoryCache;
+
     /** Amount of time to wait after first response arrives before delivering all responses. */
     private int mBatchResponseDelayMs = 100;
 
@@ -37,12 +44,29 @@ public class ImageBlurrer {
     /** Runnable for in-flight response delivery. */
     private Runnable mRunnable;
 
+    /** Picks the blur quality of every request, if set. */
+    private BlurQualityController mQualityController;
+
+    /** How long a request stays useful after it is issued, in milliseconds; 0 for ever. */
+    private long mBlurTimeoutMs = 0;
+
     /**
      * Constructs a new ImageBlurrer
      * @param queue The {@link BlurQueue} instance.
      */
     public ImageBlurrer(BlurQueue queue) {
+        this(queue, null);
+    }
+
+    /**
+     * Constructs a new ImageBlurrer with a memory cache in front of the queue. Blurs found
+     * there are delivered immediately, without a trip through the queue.
+     * @param queue The {@link BlurQueue} instance.
+     * @param memoryCache The memory cache of blurred images, or null for none.
+     */
+    public ImageBlurrer(BlurQueue queue, ImageLoader.ImageCache memoryCache) {
         mBlurQueue = queue;
+        mMemoryCache = memoryCache;
     }
 
     /**
@@ -87,6 +111,82 @@ public class ImageBlurrer {
         return this.blur(bitmapToBlur, cacheKey, 0, 0, 0, 0, blurListener);
     }
 
+    /**
+     * Issues a bitmap blur request with the given bitmap and blur spec.
+     * @param bitmapToBlur The bitmap to blur.
+     * @param cacheKey The cache key that is associated with the blur request.
+     * @param blurSpec How to blur the image.
+     * @param blurListener The listener to call when the remote image is loaded
+     * @return A container object that contains all of the properties of the request, as well as
+     *     the currently available image (default if remote is not loaded).
+     */
+    public BlurredImageContainer blur(final Bitmap bitmapToBlur, final String cacheKey, BlurSpec blurSpec, ImageBlurListener blurListener) {
+        return this.blur(bitmapToBlur, cacheKey, 0, 0, 0, 0, blurSpec, blurListener);
+    }
+
+    /**
+     * Issues a bitmap blur request with the given bitmap and blur spec for an image shown
+     * on a page. Requests nearest to the page set with {@link BlurQueue#setCurrentPosition(int)}
+     * are blurred first.
+     * @param bitmapToBlur The bitmap to blur.
+     * @param cacheKey The cache key that is associated with the blur request.
+     * @param blurSpec How to blur the image.
+     * @param position The page position of the image, or {@link BlurRequest#NO_POSITION}.
+     * @param blurListener The listener to call when the remote image is loaded
+     * @return A container object that contains all of the properties of the request, as well as
+     *     the currently available image (default if remote is not loaded).
+     */
+    public BlurredImageContainer blur(final Bitmap bitmapToBlur, final String cacheKey, BlurSpec blurSpec, int position, ImageBlurListener blurListener) {
+        return this.blur(bitmapToBlur, null, null, cacheKey, 0, 0, 0, 0, blurSpec, position, blurListener);
+    }
+
+    /**
+     * Issues a blur request for an encoded image. The image is decoded straight to about
+     * the blurred size, so the full size bitmap is never decoded.
+     * @param encodedImage The encoded image, for example a JPEG.
+     * @param cacheKey The cache key that is associated with the blur request.
+     * @param blurSpec How to blur the image.
+     * @param blurListener The listener to call when the remote image is loaded
+     * @return A container object that contains all of the properties of the request, as well as
+     *     the currently available image (default if remote is not loaded).
+     */
+    public BlurredImageContainer blur(final byte[] encodedImage, final String cacheKey, BlurSpec blurSpec, ImageBlurListener blurListener) {
+        return this.blur(null, encodedImage, null, cacheKey, 0, 0, 0, 0, blurSpec, BlurRequest.NO_POSITION, blurListener);
+    }
+
+    /**
+     * Issues a blur request for the encoded image that Volley cached for the given url.
+     * The entry is read off the main thread and decoded straight to about the blurred
+     * size. If it is no longer cached the given bitmap is blurred instead.
+     * @param bitmapToBlur The decoded image, blurred if the cache entry is gone.
+     * @param encodedImageCache The Volley cache holding the encoded image.
+     * @param cacheKey The image url, used both as the Volley cache key and for the blur request.
+     * @param blurSpec How to blur the image.
+     * @param blurListener The listener to call when the remote image is loaded
+     * @return A container object that contains all of the properties of the request, as well as
+     *     the currently available image (default if remote is not loaded).
+     */
+    public BlurredImageContainer blur(final Bitmap bitmapToBlur, Cache encodedImageCache, final String cacheKey, BlurSpec blurSpec, ImageBlurListener blurListener) {
+        return this.blur(bitmapToBlur, encodedImageCache, cacheKey, blurSpec, BlurRequest.NO_POSITION, blurListener);
+    }
+
+    /**
+     * Issues a blur request for the encoded image that Volley cached for the given url,
+     * for an image shown on a page. Requests nearest to the page set with
+     * {@link BlurQueue#setCurrentPosition(int)} are blurred first.
+     * @param bitmapToBlur The decoded image, blurred if the cache entry is gone.
+     * @param encodedImageCache The Volley cache holding the encoded image.
+     * @param cacheKey The image url, used both as the Volley cache key and for the blur request.
+     * @param blurSpec How to blur the image.
+     * @param position The page position of the image, or {@link BlurRequest#NO_POSITION}.
+     * @param blurListener The listener to call when the remote image is loaded
+     * @return A container object that contains all of the properties of the request, as well as
+     *     the currently available image (default if remote is not loaded).
+     */
+    public BlurredImageContainer blur(final Bitmap bitmapToBlur, Cache encodedImageCache, final String cacheKey, BlurSpec blurSpec, int position, ImageBlurListener blurListener) {
+        return this.blur(bitmapToBlur, null, encodedImageCache, cacheKey, 0, 0, 0, 0, blurSpec, position, blurListener);
+    }
+
     /**
      * Issues a bitmap blur request with the given bitmap,
      * and crops to the given view's bounds.
@@ -115,10 +215,51 @@ public class ImageBlurrer {
      *     the currently available image (default if remote is not loaded).
      */
     public BlurredImageContainer blur(final Bitmap bitmapToBlur, final String cacheKey, int cropWidth, int cropHeight, int leftPos, int topPos, ImageBlurListener blurListener) {
+        return this.blur(bitmapToBlur, cacheKey, cropWidth, cropHeight, leftPos, topPos, BlurSpec.DEFAULT, blurListener);
+    }
+
+    /**
+     * Issues a bitmap blur request with the given bitmap and blur spec,
+     * and crops to the given bounds. Requests for the same image with a different
+     * crop or spec are cached and coalesced separately.
+     * @param bitmapToBlur The bitmap to blur.
+     * @param cacheKey The cache key that is associated with the blur request.
+     * @param cropWidth The crop width.
+     * @param cropHeight The crop height.
+     * @param leftPos The left position of the crop.
+     * @param topPos The top position of the crop.
+     * @param blurSpec How to blur the image.
+     * @param blurListener The listener to call when the remote image is loaded
+     * @return A container object that contains all of the properties of the request, as well as
+     *     the currently available image (default if remote is not loaded).
+     */
+    public BlurredImageContainer blur(final Bitmap bitmapToBlur, final String cacheKey, int cropWidth, int cropHeight, int leftPos, int topPos, BlurSpec blurSpec, ImageBlurListener blurListener) {
+        return this.blur(bitmapToBlur, null, null, cacheKey, cropWidth, cropHeight, leftPos, topPos, blurSpec, BlurRequest.NO_POSITION, blurListener);
+    }
+
+    /**
+     * Issues a blur request for a bitmap, an encoded image, or both.
+     */
+    private BlurredImageContainer blur(final Bitmap bitmapToBlur, byte[] encodedImage, Cache encodedImageCache, final String cacheKey, int cropWidth, int cropHeight, int leftPos, int topPos, BlurSpec blurSpec, int position, ImageBlurListener blurListener) {
         // only fulfill requests that were initiated from the main thread.
         throwIfNotOnMainThread();
 
-        final String blurredKey = createCacheKey(cacheKey);
+        if (mQualityController != null) {
+            blurSpec = mQualityController.adjust(blurSpec);
+        }
+
+        final String blurredKey = createCacheKey(cacheKey, cropWidth, cropHeight, leftPos, topPos, blurSpec);
+
+        // Try to look up the blur in the memory cache.
+        if (mMemoryCache != null) {
+            Bitmap cachedBitmap = mMemoryCache.getBitmap(blurredKey);
+            if (cachedBitmap != null) {
+                // Return the cached bitmap.
+                BlurredImageContainer container = new BlurredImageContainer(cachedBitmap, blurredKey, null);
+                blurListener.onBlurResponse(container, true);
+                return container;
+            }
+        }
 
         // Create an empty container.
         BlurredImageContainer BlurredImageContainer = new BlurredImageContainer(null, blurredKey, blurListener);
@@ -145,13 +286,42 @@ public class ImageBlurrer {
             public void onErrorResponse(BlurError error) {
                 onGetImageError(blurredKey, error);
             }
-        }, cropWidth, cropHeight, leftPos, topPos);
+        }, cropWidth, cropHeight, leftPos, topPos).setBlurSpec(blurSpec).setPosition(position);
+        if (mBlurTimeoutMs > 0) {
+            newRequest.setDeadline(SystemClock.elapsedRealtime() + mBlurTimeoutMs);
+        }
+        if (encodedImage != null) {
+            newRequest.setEncodedImage(encodedImage);
+        } else if (encodedImageCache != null) {
+            newRequest.setEncodedImage(encodedImageCache, cacheKey);
+        }
 
         mBlurQueue.add(newRequest);
         mInFlightRequests.put(blurredKey, new BatchedImageRequest(newRequest, BlurredImageContainer));
         return BlurredImageContainer;
     }
 
+    /**
+     * Sets the controller that picks the scale factor and radius of every request issued
+     * from now on. The caller's spec still decides the pixel format, algorithm and
+     * pyramid levels. Pass null to use the caller's spec as is.
+     * @param controller The controller, or null for none.
+     */
+    public void setQualityController(BlurQualityController controller) {
+        mQualityController = controller;
+    }
+
+    /**
+     * Gives every request issued from now on a deadline, so blurs that would finish too
+     * late to be shown are dropped instead. A screen that moves on every few seconds,
+     * like the Dream, should pass its page interval. Late requests get a
+     * {@link BlurDeadlineError}, and blurring the image again issues a new request.
+     * @param timeoutMs How long a request stays useful after it is issued, or 0 for ever.
+     */
+    public void setBlurTimeout(long timeoutMs) {
+        mBlurTimeoutMs = timeoutMs;
+    }
+
     /**
      * Sets the amount of time to wait after the first response arrives before delivering all
      * responses. Batching can be disabled entirely by passing in 0.
@@ -168,6 +338,11 @@ public class ImageBlurrer {
      */
     private void onGetImageSuccess(String blurredKey, Bitmap response) {
 
+        // cache the bitmap so the next request for it is answered immediately.
+        if (mMemoryCache != null) {
+            mMemoryCache.putBitmap(blurredKey, response);
+        }
+
         // remove the request from the list of in-flight requests.
         BatchedImageRequest request = mInFlightRequests.remove(blurredKey);
 
@@ -370,12 +545,30 @@ public class ImageBlurrer {
     }
 
     /**
-     * Creates a cache key.
+     * Creates a cache key from the source key, the crop and the blur spec. An uncropped
+     * blur with the default spec keeps the plain key so existing cache entries stay valid.
+     * The result only uses characters that are valid disk cache keys.
      * @param originalCacheKey The non-blurred image's cacheKey.
+     * @param cropWidth The crop width, or 0 for none.
+     * @param cropHeight The crop height, or 0 for none.
+     * @param leftPos The left position of the crop.
+     * @param topPos The top position of the crop.
+     * @param blurSpec How the image is blurred.
      * @return The cache key string for the blurred image.
      */
-    private static String createCacheKey(String originalCacheKey) {
-        return String.valueOf(originalCacheKey.hashCode());
+    private static String createCacheKey(String originalCacheKey, int cropWidth, int cropHeight, int leftPos, int topPos, BlurSpec blurSpec) {
+        String key = String.valueOf(originalCacheKey.hashCode());
+        boolean cropped = cropWidth != 0 || cropHeight != 0 || leftPos > 0 || topPos > 0;
+        if (!cropped && BlurSpec.DEFAULT.equals(blurSpec)) {
+            return key;
+        }
+        StringBuilder builder = new StringBuilder(key).append('_').append(blurSpec.getCacheKeySuffix());
+        if (cropped) {
+            // Negative positions are treated as 0 by the request, so the key does the same.
+            builder.append("_c").append(cropWidth).append('x').append(cropHeight)
+                    .append('_').append(Math.max(leftPos, 0)).append('_').append(Math.max(topPos, 0));
+        }
+        return builder.toString();
     }
 
     /**
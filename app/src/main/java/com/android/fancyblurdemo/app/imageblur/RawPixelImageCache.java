@@ -0,0 +1,208 @@
+package com.android.fancyblurdemo.app.imageblur;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.android.fancyblurdemo.app.BuildConfig;
+import com.android.fancyblurdemo.volley.toolbox.ImageLoader;
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A disk cache of blurred images that stores their pixels uncompressed.
+ *
+ * Blurred images are downsized, so they are small even without compression, and a PNG
+ * decode on every hit costs more than reading the extra bytes. Each entry is a short
+ * header, the width, height and pixel format, followed by the pixels exactly as
+ * {@link Bitmap#copyPixelsToBuffer} wrote them. A hit reads the file into a reused direct
+ * buffer and copies the pixels straight into a new bitmap with
+ * {@link Bitmap#copyPixelsFromBuffer}; no codec is involved. The file is not mapped: nothing
+ * unmaps a mapping but the garbage collector, so mapping on every hit piles up mappings
+ * until the process runs out of them. The pixels are in the device's native layout, which
+ * is fine for a cache that never leaves the device.
+ *
+ * Eviction and crash safety come from {@link DiskLruCache}, as in {@link DiskLruImageCache}.
+ */
+public class RawPixelImageCache implements ImageLoader.ImageCache {
+
+    private static final String TAG = "RawPixelImageCache";
+
+    /** Distinct from {@link DiskLruImageCache}'s version, so a PNG cache in the same folder is wiped. */
+    private static final int APP_VERSION = 2;
+    private static final int VALUE_COUNT = 1;
+
+    /** Marks an entry as ours; "BLRP". */
+    private static final int MAGIC = 0x424c5250;
+
+    /** Magic, width, height and config code, one int each. */
+    private static final int HEADER_SIZE = 16;
+
+    /** Pixel formats, in the order of their codes in the header. */
+    private static final Bitmap.Config[] CONFIGS = {
+            Bitmap.Config.ALPHA_8, Bitmap.Config.RGB_565, Bitmap.Config.ARGB_4444, Bitmap.Config.ARGB_8888
+    };
+
+    /** Bytes per pixel of each entry of {@link #CONFIGS}. */
+    private static final int[] BYTES_PER_PIXEL = { 1, 2, 2, 4 };
+
+    private DiskLruCache mDiskCache;
+
+    /** Entries are read into this, grown to the largest entry read. Guarded by {@link #mReadLock}. */
+    private ByteBuffer mReadBuffer;
+    private final Object mReadLock = new Object();
+
+    public RawPixelImageCache(Context context, String uniqueName, int diskCacheSize) {
+        try {
+            final File diskCacheDir = new File(context.getCacheDir(), uniqueName);
+            mDiskCache = DiskLruCache.open(diskCacheDir, APP_VERSION, VALUE_COUNT, diskCacheSize);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void putBitmap(String key, Bitmap bitmap) {
+        int configCode = getConfigCode(bitmap.getConfig());
+        if (mDiskCache == null || configCode < 0) {
+            return;
+        }
+
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = mDiskCache.edit(key);
+            if (editor == null) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bitmap.getByteCount());
+            buffer.putInt(MAGIC).putInt(bitmap.getWidth()).putInt(bitmap.getHeight()).putInt(configCode);
+            bitmap.copyPixelsToBuffer(buffer);
+
+            OutputStream out = editor.newOutputStream(0);
+            try {
+                out.write(buffer.array(), 0, buffer.position());
+            } finally {
+                out.close();
+            }
+            editor.commit();
+            editor = null;  // committed; nothing left to abort
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "image put on disk cache " + key);
+            }
+        } catch (IOException e) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "ERROR on: image put on disk cache " + key);
+            }
+            try {
+                if (editor != null) {
+                    editor.abort();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public Bitmap getBitmap(String key) {
+        if (mDiskCache == null) {
+            return null;
+        }
+
+        Bitmap bitmap = null;
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = mDiskCache.get(key);
+            if (snapshot == null) {
+                return null;
+            }
+            bitmap = readBitmap(snapshot.getInputStream(0), snapshot.getLength(0));
+            if (bitmap == null) {
+                // Not something we wrote; drop it so the image is blurred and stored again.
+                snapshot.close();
+                snapshot = null;
+                mDiskCache.remove(key);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, bitmap == null ? "" : "image read from disk " + key);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Reads an entry. DiskLruCache hands out file streams, so the file is read through its
+     * channel into {@link #mReadBuffer} rather than through the stream.
+     * @return The bitmap, or null if the entry is not valid.
+     */
+    private Bitmap readBitmap(InputStream in, long length) throws IOException {
+        if (!(in instanceof FileInputStream) || length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        FileChannel channel = ((FileInputStream) in).getChannel();
+        synchronized (mReadLock) {
+            if (mReadBuffer == null || mReadBuffer.capacity() < length) {
+                mReadBuffer = ByteBuffer.allocateDirect((int) length);
+            }
+            ByteBuffer buffer = mReadBuffer;
+            buffer.clear();
+            buffer.limit((int) length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return null;
+                }
+            }
+            buffer.flip();
+            if (buffer.getInt() != MAGIC) {
+                return null;
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int configCode = buffer.getInt();
+            if (width <= 0 || height <= 0 || configCode < 0 || configCode >= CONFIGS.length
+                    || buffer.remaining() != (long) width * height * BYTES_PER_PIXEL[configCode]) {
+                return null;
+            }
+            Bitmap bitmap = Bitmap.createBitmap(width, height, CONFIGS[configCode]);
+            bitmap.copyPixelsFromBuffer(buffer);
+            return bitmap;
+        }
+    }
+
+    private static int getConfigCode(Bitmap.Config config) {
+        for (int i = 0; i < CONFIGS.length; i++) {
+            if (CONFIGS[i] == config) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void clearCache() {
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "disk cache CLEARED");
+        }
+        try {
+            mDiskCache.delete();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public File getCacheFolder() {
+        return mDiskCache.getDirectory();
+    }
+}
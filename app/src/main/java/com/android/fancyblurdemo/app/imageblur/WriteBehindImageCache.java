@@ -0,0 +1,213 @@
+package com.android.fancyblurdemo.app.imageblur;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+
+import com.android.fancyblurdemo.volley.VolleyLog;
+import com.android.fancyblurdemo.volley.toolbox.ImageLoader;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An image cache that writes to a slower cache, such as a {@link RawPixelImageCache}, on its
+ * own low priority thread.
+ *
+ * {@link #putBitmap(String, Bitmap)} only records the bitmap and returns, so a blur
+ * dispatcher can start its next blur instead of waiting for the disk: copying the pixels out,
+ * writing the entry file and the two journal lines {@code DiskLruCache} writes for every
+ * edit. Puts waiting to be written are kept in insertion order, one per key: a second put
+ * of the same key replaces the first and only the newest bitmap is written. Reads see
+ * waiting puts, so a bitmap is never blurred twice just because it is not on disk yet.
+ *
+ * At most {@code maxPending} bitmaps wait at once. If the writer falls that far behind, a
+ * put of a new key drops the oldest waiting put, so callers never wait for the disk and
+ * only the writer thread ever writes. Dropped and waiting puts are lost, as are waiting puts
+ * if the process dies; this is a cache, so that only costs a blur.
+ */
+public class WriteBehindImageCache implements ImageLoader.ImageCache {
+
+    /** Default number of bitmaps that may wait to be written. */
+    public static final int DEFAULT_MAX_PENDING = 8;
+
+    /** Where bitmaps are read from and eventually written to. */
+    private final ImageLoader.ImageCache mCache;
+
+    /** Maximum number of bitmaps waiting to be written. */
+    private final int mMaxPending;
+
+    /** Runs {@link #mWriter}; one thread, so writes never compete with each other. */
+    private final Executor mExecutor;
+
+    /** Puts waiting to be written, oldest first. Guarded by itself. */
+    private final LinkedHashMap<String, Bitmap> mPending = new LinkedHashMap<String, Bitmap>();
+
+    /** The put the writer is working on, still readable until it is written. */
+    private String mWritingKey;
+    private Bitmap mWritingBitmap;
+
+    /** Whether {@link #mWriter} has been handed to the executor and not yet returned. */
+    private boolean mWriterScheduled = false;
+
+    /** Number of puts, puts replaced before they were written, and puts dropped unwritten. */
+    private long mPutCount;
+    private long mCoalescedCount;
+    private long mDroppedCount;
+
+    /** Writes waiting puts until there are none left. */
+    private final Runnable mWriter = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                String key;
+                Bitmap bitmap;
+                synchronized (mPending) {
+                    mWritingKey = null;
+                    mWritingBitmap = null;
+                    Iterator<Map.Entry<String, Bitmap>> oldest = mPending.entrySet().iterator();
+                    if (!oldest.hasNext()) {
+                        mWriterScheduled = false;
+                        break;
+                    }
+                    Map.Entry<String, Bitmap> entry = oldest.next();
+                    oldest.remove();
+                    key = entry.getKey();
+                    bitmap = entry.getValue();
+                    mWritingKey = key;
+                    mWritingBitmap = bitmap;
+                }
+                try {
+                    mCache.putBitmap(key, bitmap);
+                } catch (RuntimeException e) {
+                    VolleyLog.e(e, "Unable to write %s", key);
+                }
+            }
+        }
+    };
+
+    /**
+     * @param cache The cache to write to.
+     * @param maxPending Maximum number of bitmaps that may wait to be written.
+     */
+    public WriteBehindImageCache(ImageLoader.ImageCache cache, int maxPending) {
+        mCache = cache;
+        mMaxPending = maxPending;
+        mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                                runnable.run();
+                            }
+                        }, "BlurCacheWriter");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    public WriteBehindImageCache(ImageLoader.ImageCache cache) {
+        this(cache, DEFAULT_MAX_PENDING);
+    }
+
+    @Override
+    public void putBitmap(String key, Bitmap bitmap) {
+        synchronized (mPending) {
+            mPutCount++;
+            if (mPending.containsKey(key)) {
+                // Replace the waiting put but keep its place in line.
+                mPending.put(key, bitmap);
+                mCoalescedCount++;
+                return;
+            }
+            if (mPending.size() >= mMaxPending) {
+                // The writer is too far behind; give up on the oldest waiting put.
+                Iterator<String> oldest = mPending.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+                mDroppedCount++;
+            }
+            mPending.put(key, bitmap);
+            if (!mWriterScheduled) {
+                mWriterScheduled = true;
+                mExecutor.execute(mWriter);
+            }
+        }
+    }
+
+    /**
+     * Returns a bitmap waiting to be written, or else reads it from the underlying cache.
+     */
+    @Override
+    public Bitmap getBitmap(String key) {
+        Bitmap pending = getPendingBitmap(key);
+        if (pending != null) {
+            return pending;
+        }
+        return mCache.getBitmap(key);
+    }
+
+    private Bitmap getPendingBitmap(String key) {
+        synchronized (mPending) {
+            Bitmap pending = mPending.get(key);
+            if (pending == null && key.equals(mWritingKey)) {
+                pending = mWritingBitmap;
+            }
+            return pending;
+        }
+    }
+
+    /**
+     * Returns the cache this one writes to.
+     */
+    public ImageLoader.ImageCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Returns the number of bitmaps waiting to be written.
+     */
+    public int getPendingCount() {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * Returns the number of puts replaced by a newer put of the same key before they were
+     * written.
+     */
+    public long getCoalescedCount() {
+        synchronized (mPending) {
+            return mCoalescedCount;
+        }
+    }
+
+    /**
+     * Returns the number of puts dropped without being written because too many were
+     * waiting.
+     */
+    public long getDroppedCount() {
+        synchronized (mPending) {
+            return mDroppedCount;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mPending) {
+            return "puts=" + mPutCount + " coalesced=" + mCoalescedCount
+                    + " dropped=" + mDroppedCount + " pending=" + mPending.size();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * JVM stand-in for the one method of Android's {@code SystemClock} the volley disk cache
+ * uses, so the benchmarks can run the real cache.
+ */
+public final class SystemClock {
+
+    private SystemClock() {
+        // no instances
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,46 @@
+package android.util;
+
+/**
+ * JVM stand-in for the parts of Android's {@code Log} that {@code VolleyLog} uses, so the
+ * benchmarks can run the real volley disk cache. Errors go to stderr; nothing else is
+ * logged, so logging does not skew the measurements.
+ */
+public final class Log {
+
+    public static final int VERBOSE = 2;
+
+    private Log() {
+        // no instances
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        return false;
+    }
+
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        System.err.println(tag + ": " + msg);
+        tr.printStackTrace();
+        return 0;
+    }
+
+    public static int wtf(String tag, String msg) {
+        return e(tag, msg);
+    }
+
+    public static int wtf(String tag, String msg, Throwable tr) {
+        return e(tag, msg, tr);
+    }
+}
@@ -0,0 +1,79 @@
+package com.android.fancyblurdemo.benchmark;
+
+import com.android.fancyblurdemo.blurkernel.BlurGeometry;
+import com.android.fancyblurdemo.blurkernel.BlurWorkspace;
+import com.android.fancyblurdemo.blurkernel.BoxBlur;
+import com.android.fancyblurdemo.blurkernel.Downscaler;
+import com.android.fancyblurdemo.blurkernel.StackBlur;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the stack blur kernels with the box blur across radii. The stack blur gets
+ * slower as the radius grows while the box blur should stay flat.
+ *
+ * All blurs run serially on a tablet sized image downscaled by 4, the largest input
+ * the dispatcher is expected to see.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlurAlgorithmBenchmark {
+
+    /** Blur radius in downscaled pixels. */
+    @Param({"2", "4", "8", "16", "32"})
+    public int radius;
+
+    private int[] mScaled;
+    private int mWidth;
+    private int mHeight;
+    private BlurWorkspace mWorkspace;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int sourceWidth = SyntheticImages.width(SyntheticImages.SIZE_TABLET);
+        int sourceHeight = SyntheticImages.height(SyntheticImages.SIZE_TABLET);
+        int[] source = SyntheticImages.create(sourceWidth, sourceHeight);
+        BlurGeometry geometry = BlurGeometry.compute(sourceWidth, sourceHeight, 0, 0, 0, 0, 4);
+        mWidth = geometry.dstWidth;
+        mHeight = geometry.dstHeight;
+        mScaled = new int[mWidth * mHeight];
+        Downscaler.downscale(source, 0, sourceWidth, geometry, mScaled, 0, mWidth);
+        mWorkspace = new BlurWorkspace();
+    }
+
+    @Benchmark
+    public int[] stackBlur() {
+        StackBlur.blur(mScaled, 0, mWidth, mWidth, mHeight, radius, mWorkspace);
+        return mScaled;
+    }
+
+    @Benchmark
+    public int[] stackBlurPacked() {
+        StackBlur.blur(mScaled, 0, mWidth, mWidth, mHeight, radius, StackBlur.KERNEL_PACKED,
+                mWorkspace, null, 1);
+        return mScaled;
+    }
+
+    @Benchmark
+    public int[] boxBlur() {
+        BoxBlur.blur(mScaled, 0, mWidth, mWidth, mHeight, radius, mWorkspace);
+        return mScaled;
+    }
+}
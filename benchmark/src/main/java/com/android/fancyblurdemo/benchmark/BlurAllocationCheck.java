@@ -0,0 +1,193 @@
+package com.android.fancyblurdemo.benchmark;
+
+import com.android.fancyblurdemo.blurkernel.BlurWorkspace;
+import com.android.fancyblurdemo.blurkernel.BoxBlur;
+import com.android.fancyblurdemo.blurkernel.StackBlur;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that a blur with a warmed up {@link BlurWorkspace} does not allocate, so blurring
+ * while the user swipes does not cause garbage collections.
+ *
+ * Each blur runs a few hundred times to warm up the workspace and the JIT, then many more
+ * times while the bytes allocated by the blurring threads are counted with
+ * {@code com.sun.management.ThreadMXBean}. The band pool of the parallel blurs is set up the
+ * way {@code BlurDispatcher} sets up its own. The blur code allocates nothing on any thread,
+ * but a band thread that finds the pool's queue empty parks inside the queue's lock, and
+ * {@link java.util.concurrent.locks.AbstractQueuedSynchronizer} allocates a small node for
+ * every wait. Band threads are therefore allowed {@link #BAND_WAIT_BYTES} per band handed
+ * to them, which catches any buffer the blur itself allocates. Run it with:
+ * <pre>
+ *   ./gradlew :benchmark:checkBlurAllocation
+ * </pre>
+ * It exits with an {@link AssertionError} at the first blur that allocates.
+ */
+public final class BlurAllocationCheck {
+
+    /** Blurs run before counting. */
+    private static final int WARMUP_BLURS = 500;
+
+    /** Blurs counted. Any allocation per blur adds up to far more than the slack. */
+    private static final int COUNTED_BLURS = 2000;
+
+    /** Size of the default blur: a 1024x768 photo at a scale factor of 8. */
+    private static final int WIDTH = 128;
+    private static final int HEIGHT = 96;
+
+    /** Band threads of the parallel blur. */
+    private static final int BAND_THREADS = 3;
+
+    /** Most bytes a band thread may allocate per band: one wait node of the queue's lock. */
+    private static final int BAND_WAIT_BYTES = 32;
+
+    private final com.sun.management.ThreadMXBean mThreads;
+    private final List<Thread> mBandThreads = new ArrayList<Thread>();
+    private final ThreadPoolExecutor mBandExecutor;
+    private final int[] mPixels;
+    private final BlurWorkspace mWorkspace = new BlurWorkspace();
+
+    /** Bytes that reading the counters allocates by itself. */
+    private long mOverhead;
+
+    private BlurAllocationCheck() {
+        mThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+        mBandExecutor = new ThreadPoolExecutor(BAND_THREADS, BAND_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(BAND_THREADS * 4),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "BlurBand #" + (mBandThreads.size() + 1));
+                        thread.setDaemon(true);
+                        mBandThreads.add(thread);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        mBandExecutor.prestartAllCoreThreads();
+        mPixels = SyntheticImages.create(WIDTH, HEIGHT);
+    }
+
+    public static void main(String[] args) {
+        BlurAllocationCheck check = new BlurAllocationCheck();
+        check(check.mThreads.isThreadAllocatedMemorySupported(),
+                "the JVM counts the bytes each thread allocates");
+        check.mOverhead = check.measureOverhead();
+        try {
+            for (int radius : new int[] { 2, 8, 15 }) {
+                check.serial(StackBlur.KERNEL_REFERENCE, radius);
+                check.serial(StackBlur.KERNEL_PACKED, radius);
+                check.parallel(StackBlur.KERNEL_REFERENCE, radius);
+                check.parallel(StackBlur.KERNEL_PACKED, radius);
+                check.box(radius);
+            }
+        } finally {
+            check.mBandExecutor.shutdownNow();
+        }
+        System.out.println("All checks passed.");
+    }
+
+    /** A serial stack blur. */
+    private void serial(final int kernel, final int radius) {
+        expectNoAllocation(new Runnable() {
+            @Override
+            public void run() {
+                StackBlur.blur(mPixels, 0, WIDTH, WIDTH, HEIGHT, radius, kernel, mWorkspace, null, 1);
+            }
+        }, "serial " + kernelName(kernel) + " blur, radius " + radius);
+    }
+
+    /** A stack blur split into bands that run on the band pool. */
+    private void parallel(final int kernel, final int radius) {
+        expectNoAllocation(new Runnable() {
+            @Override
+            public void run() {
+                StackBlur.blur(mPixels, 0, WIDTH, WIDTH, HEIGHT, radius, kernel, mWorkspace,
+                        mBandExecutor, BAND_THREADS + 1);
+            }
+        }, "parallel " + kernelName(kernel) + " blur, radius " + radius);
+    }
+
+    /** A box blur. */
+    private void box(final int radius) {
+        expectNoAllocation(new Runnable() {
+            @Override
+            public void run() {
+                BoxBlur.blur(mPixels, 0, WIDTH, WIDTH, HEIGHT, radius, mWorkspace);
+            }
+        }, "box blur, radius " + radius);
+    }
+
+    private void expectNoAllocation(Runnable blur, String name) {
+        for (int i = 0; i < WARMUP_BLURS; i++) {
+            blur.run();
+        }
+        long before = allocatedBytes();
+        long bandBefore = bandAllocatedBytes();
+        for (int i = 0; i < COUNTED_BLURS; i++) {
+            blur.run();
+        }
+        long allocated = allocatedBytes() - before - mOverhead;
+        long bandAllocated = bandAllocatedBytes() - bandBefore;
+        // Allow a little for the counters themselves, which is far less than a byte per blur.
+        if (allocated >= COUNTED_BLURS) {
+            throw new AssertionError(name + " allocated " + allocated + " bytes in "
+                    + COUNTED_BLURS + " blurs");
+        }
+        // Two passes per blur, each handing a band to every band thread.
+        long bands = (long) COUNTED_BLURS * 2 * BAND_THREADS;
+        if (bandAllocated > bands * BAND_WAIT_BYTES) {
+            throw new AssertionError(name + " allocated " + bandAllocated
+                    + " bytes on the band threads in " + COUNTED_BLURS + " blurs");
+        }
+        System.out.println("ok  " + name + " does not allocate");
+    }
+
+    /**
+     * Returns the bytes allocated so far by this thread.
+     */
+    private long allocatedBytes() {
+        return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Returns the bytes allocated so far by the band threads.
+     */
+    private long bandAllocatedBytes() {
+        long bytes = 0;
+        for (int i = 0; i < mBandThreads.size(); i++) {
+            bytes += mThreads.getThreadAllocatedBytes(mBandThreads.get(i).getId());
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the bytes one pair of {@link #allocatedBytes()} calls allocates.
+     */
+    private long measureOverhead() {
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_BLURS; i++) {
+            long before = allocatedBytes();
+            overhead = Math.min(overhead, allocatedBytes() - before);
+        }
+        return overhead;
+    }
+
+    private static String kernelName(int kernel) {
+        return kernel == StackBlur.KERNEL_PACKED ? "packed" : "reference";
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("ok  " + message);
+    }
+}
@@ -0,0 +1,142 @@
+package com.android.fancyblurdemo.benchmark;
+
+import com.android.fancyblurdemo.blurkernel.BlurWorkspace;
+import com.android.fancyblurdemo.blurkernel.StackBlur;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks that {@link StackBlur#KERNEL_PACKED} produces exactly the pixels of
+ * {@link StackBlur#KERNEL_REFERENCE}, the original stack blur.
+ *
+ * Each case blurs a random region of a larger buffer of random pixels with both kernels:
+ * every radius the packed kernel supports, odd and even sizes down to a single pixel, and a
+ * region that starts part way into the buffer with a stride wider than the region, the
+ * way levels of a {@code BlurPyramid} are laid out. The packed kernel runs serially and
+ * split into bands. Pixels outside the region must be left alone. Run it with:
+ * <pre>
+ *   ./gradlew :benchmark:checkBlurKernels
+ * </pre>
+ * It exits with an {@link AssertionError} at the first mismatch.
+ */
+public final class BlurKernelCheck {
+
+    /** Random cases per radius. */
+    private static final int CASES_PER_RADIUS = 40;
+
+    /** Largest region side. */
+    private static final int MAX_SIDE = 97;
+
+    /** Most pixels between the region and the edges of the buffer. */
+    private static final int MAX_MARGIN = 9;
+
+    /** Bands of the parallel runs. */
+    private static final int BANDS = 4;
+
+    private final Random mRandom = new Random(42);
+    private final BlurWorkspace mWorkspace = new BlurWorkspace();
+    private final ExecutorService mBandExecutor = Executors.newFixedThreadPool(BANDS - 1);
+
+    private BlurKernelCheck() {
+    }
+
+    public static void main(String[] args) {
+        BlurKernelCheck check = new BlurKernelCheck();
+        try {
+            for (int radius = 1; radius <= StackBlur.PACKED_MAX_RADIUS; radius++) {
+                check.radius(radius);
+            }
+            check.edges();
+        } finally {
+            check.mBandExecutor.shutdownNow();
+        }
+        System.out.println("All checks passed.");
+    }
+
+    /** Random regions at one radius, with odd sizes half the time. */
+    private void radius(int radius) {
+        for (int i = 0; i < CASES_PER_RADIUS; i++) {
+            int width = 1 + mRandom.nextInt(MAX_SIDE);
+            int height = 1 + mRandom.nextInt(MAX_SIDE);
+            if (i % 2 == 0) {
+                width |= 1;
+                height |= 1;
+            }
+            compare(width, height, radius);
+        }
+        System.out.println("ok  packed kernel matches the reference at radius " + radius);
+    }
+
+    /** Regions a single pixel wide or high, and regions smaller than the kernel. */
+    private void edges() {
+        int[][] sizes = { { 1, 1 }, { 1, 31 }, { 31, 1 }, { 2, 3 }, { 3, 2 }, { 5, 7 } };
+        for (int[] size : sizes) {
+            for (int radius = 1; radius <= StackBlur.PACKED_MAX_RADIUS; radius++) {
+                compare(size[0], size[1], radius);
+            }
+        }
+        System.out.println("ok  packed kernel matches the reference on thin and tiny regions");
+    }
+
+    /**
+     * Blurs one random region with both kernels, the packed one serially and in bands, and
+     * compares the whole buffers.
+     */
+    private void compare(int width, int height, int radius) {
+        int left = mRandom.nextInt(MAX_MARGIN + 1);
+        int top = mRandom.nextInt(MAX_MARGIN + 1);
+        int stride = left + width + mRandom.nextInt(MAX_MARGIN + 1);
+        int rows = top + height + mRandom.nextInt(MAX_MARGIN + 1);
+        int offset = top * stride + left;
+
+        int[] source = new int[stride * rows];
+        for (int i = 0; i < source.length; i++) {
+            source[i] = mRandom.nextInt();
+        }
+        int[] expected = source.clone();
+        StackBlur.blur(expected, offset, stride, width, height, radius,
+                StackBlur.KERNEL_REFERENCE, mWorkspace, null, 1);
+        checkOutside(source, expected, offset, stride, width, height, "reference");
+
+        int[] packed = source.clone();
+        StackBlur.blur(packed, offset, stride, width, height, radius,
+                StackBlur.KERNEL_PACKED, mWorkspace, null, 1);
+        checkSame(expected, packed, offset, stride, width, height, radius, "serial");
+
+        int[] banded = source.clone();
+        StackBlur.blur(banded, offset, stride, width, height, radius,
+                StackBlur.KERNEL_PACKED, mWorkspace, mBandExecutor, BANDS);
+        checkSame(expected, banded, offset, stride, width, height, radius, "banded");
+    }
+
+    private static void checkSame(int[] expected, int[] actual, int offset, int stride,
+            int width, int height, int radius, String mode) {
+        if (!Arrays.equals(expected, actual)) {
+            for (int i = 0; i < expected.length; i++) {
+                if (expected[i] != actual[i]) {
+                    int x = (i - offset) % stride;
+                    int y = (i - offset) / stride;
+                    throw new AssertionError(String.format(
+                            "%s packed blur of %dx%d at radius %d, offset %d, stride %d differs at (%d, %d): %08x, expected %08x",
+                            mode, width, height, radius, offset, stride, x, y, actual[i], expected[i]));
+                }
+            }
+        }
+    }
+
+    private static void checkOutside(int[] source, int[] blurred, int offset, int stride,
+            int width, int height, String kernel) {
+        for (int i = 0; i < source.length; i++) {
+            int x = (i - offset) % stride;
+            int y = (i - offset) / stride;
+            boolean inside = i >= offset && x < width && y < height;
+            if (!inside && source[i] != blurred[i]) {
+                throw new AssertionError(kernel + " blur of " + width + "x" + height
+                        + " wrote outside its region at index " + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.android.fancyblurdemo.benchmark;
+
+import com.android.fancyblurdemo.blurkernel.BlurGeometry;
+import com.android.fancyblurdemo.blurkernel.BlurWorkspace;
+import com.android.fancyblurdemo.blurkernel.Downscaler;
+import com.android.fancyblurdemo.blurkernel.StackBlur;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the steps of the blur path the {@code BlurDispatcher} runs for every cache
+ * miss: the downscale of the source, the stack blur of the downscaled image, and both
+ * together.
+ *
+ * The blur is data independent, so it is run over the same buffer again and again
+ * rather than paying for a copy on every invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlurPipelineBenchmark {
+
+    /** Flickr size suffix of the source image. */
+    @Param({SyntheticImages.SIZE_PHONE, SyntheticImages.SIZE_TABLET})
+    public String size;
+
+    /** Downscale factor; the app currently uses 8. */
+    @Param({"4", "8"})
+    public int scaleFactor;
+
+    /** Blur radius in downscaled pixels; the app currently uses 2. */
+    @Param({"2", "4", "8"})
+    public int radius;
+
+    private int[] mSource;
+    private int mSourceWidth;
+    private BlurGeometry mGeometry;
+    private int[] mScaled;
+    private BlurWorkspace mWorkspace;
+    private ExecutorService mBandExecutor;
+    private int mBands;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mSourceWidth = SyntheticImages.width(size);
+        int sourceHeight = SyntheticImages.height(size);
+        mSource = SyntheticImages.create(mSourceWidth, sourceHeight);
+        mGeometry = BlurGeometry.compute(mSourceWidth, sourceHeight, 0, 0, 0, 0, scaleFactor);
+        mScaled = new int[mGeometry.dstWidth * mGeometry.dstHeight];
+        Downscaler.downscale(mSource, 0, mSourceWidth, mGeometry, mScaled, 0, mGeometry.dstWidth);
+        mWorkspace = new BlurWorkspace();
+        mBands = Runtime.getRuntime().availableProcessors();
+        mBandExecutor = Executors.newFixedThreadPool(Math.max(1, mBands - 1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mBandExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public int[] downscale() {
+        Downscaler.downscale(mSource, 0, mSourceWidth, mGeometry, mScaled, 0, mGeometry.dstWidth);
+        return mScaled;
+    }
+
+    @Benchmark
+    public int[] stackBlur() {
+        StackBlur.blur(mScaled, 0, mGeometry.dstWidth, mGeometry.dstWidth, mGeometry.dstHeight,
+                radius, mWorkspace);
+        return mScaled;
+    }
+
+    @Benchmark
+    public int[] stackBlurPacked() {
+        StackBlur.blur(mScaled, 0, mGeometry.dstWidth, mGeometry.dstWidth, mGeometry.dstHeight,
+                radius, StackBlur.KERNEL_PACKED, mWorkspace, null, 1);
+        return mScaled;
+    }
+
+    @Benchmark
+    public int[] stackBlurParallel() {
+        StackBlur.blur(mScaled, 0, mGeometry.dstWidth, mGeometry.dstWidth, mGeometry.dstHeight,
+                radius, StackBlur.KERNEL_REFERENCE, mWorkspace, mBandExecutor, mBands);
+        return mScaled;
+    }
+
+    @Benchmark
+    public int[] endToEnd() {
+        Downscaler.downscale(mSource, 0, mSourceWidth, mGeometry, mScaled, 0, mGeometry.dstWidth);
+        StackBlur.blur(mScaled, 0, mGeometry.dstWidth, mGeometry.dstWidth, mGeometry.dstHeight,
+                radius, mWorkspace);
+        return mScaled;
+    }
+}
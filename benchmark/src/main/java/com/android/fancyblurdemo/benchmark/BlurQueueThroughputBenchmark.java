@@ -0,0 +1,149 @@
+package com.android.fancyblurdemo.benchmark;
+
+import com.android.fancyblurdemo.blurkernel.BlurGeometry;
+import com.android.fancyblurdemo.blurkernel.BlurWorkspace;
+import com.android.fancyblurdemo.blurkernel.Downscaler;
+import com.android.fancyblurdemo.blurkernel.StackBlur;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many blurs per second the {@code BlurQueue} completes as the number of
+ * {@code BlurDispatcher} workers grows.
+ *
+ * Like the real queue, the workers take jobs from one shared priority queue and each has
+ * its own source copy and {@link BlurWorkspace}, so they only contend for the queue and
+ * for memory bandwidth. Every job downscales the source and blurs it serially, which is
+ * what a dispatcher does for a cache miss. Throughput is reported per blur.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlurQueueThroughputBenchmark {
+
+    /** Number of blurs submitted per invocation; enough to keep every worker busy. */
+    private static final int BATCH_SIZE = 32;
+
+    /** Number of dispatcher threads sharing the queue. */
+    @Param({"1", "2", "4"})
+    public int workers;
+
+    /** Flickr size suffix of the source image. */
+    @Param({SyntheticImages.SIZE_PHONE, SyntheticImages.SIZE_TABLET})
+    public String size;
+
+    /** Downscale factor; the app currently uses 8. */
+    @Param({"8"})
+    public int scaleFactor;
+
+    /** Blur radius in downscaled pixels; the app currently uses 2. */
+    @Param({"2"})
+    public int radius;
+
+    private final PriorityBlockingQueue<Job> mQueue = new PriorityBlockingQueue<Job>();
+    private final Job[] mJobs = new Job[BATCH_SIZE];
+    private Worker[] mWorkers;
+    private BlurGeometry mGeometry;
+    private int mSourceWidth;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mSourceWidth = SyntheticImages.width(size);
+        int sourceHeight = SyntheticImages.height(size);
+        mGeometry = BlurGeometry.compute(mSourceWidth, sourceHeight, 0, 0, 0, 0, scaleFactor);
+        int[] source = SyntheticImages.create(mSourceWidth, sourceHeight);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            mJobs[i] = new Job(i);
+        }
+        mWorkers = new Worker[workers];
+        for (int i = 0; i < workers; i++) {
+            mWorkers[i] = new Worker(source.clone(), "BlurWorker #" + i);
+            mWorkers[i].start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        for (Worker worker : mWorkers) {
+            worker.interrupt();
+        }
+        for (Worker worker : mWorkers) {
+            worker.join();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void blurs() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(BATCH_SIZE);
+        for (Job job : mJobs) {
+            job.mDone = done;
+            mQueue.add(job);
+        }
+        done.await();
+    }
+
+    /** A queued blur; ordered by sequence number like a {@code BlurRequest}. */
+    private static final class Job implements Comparable<Job> {
+        final int mSequence;
+        CountDownLatch mDone;
+
+        Job(int sequence) {
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Job another) {
+            return mSequence - another.mSequence;
+        }
+    }
+
+    /** A dispatcher thread with its own scratch state. */
+    private final class Worker extends Thread {
+        private final int[] mSource;
+        private final int[] mScaled = new int[mGeometry.dstWidth * mGeometry.dstHeight];
+        private final BlurWorkspace mWorkspace = new BlurWorkspace();
+
+        Worker(int[] source, String name) {
+            super(name);
+            mSource = source;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Job job;
+                try {
+                    job = mQueue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Downscaler.downscale(mSource, 0, mSourceWidth, mGeometry, mScaled, 0, mGeometry.dstWidth);
+                StackBlur.blur(mScaled, 0, mGeometry.dstWidth, mGeometry.dstWidth, mGeometry.dstHeight,
+                        radius, StackBlur.KERNEL_PACKED, mWorkspace, null, 1);
+                job.mDone.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.android.fancyblurdemo.benchmark;
+
+import com.android.fancyblurdemo.blurkernel.BlurGeometry;
+import com.android.fancyblurdemo.blurkernel.BlurWorkspace;
+import com.android.fancyblurdemo.blurkernel.Downscaler;
+import com.android.fancyblurdemo.blurkernel.StackBlur;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Compares the two on-disk formats for blurred images: the PNG that
+ * {@code DiskLruImageCache} writes and the raw pixels that {@code RawPixelImageCache}
+ * writes.
+ *
+ * The JVM has no {@code Bitmap}, so the PNG path uses ImageIO in place of
+ * {@code BitmapFactory} and {@code Bitmap.compress}, and the raw path copies into an
+ * {@code int[]} in place of {@code Bitmap.copyPixelsFromBuffer}. The file layouts and the
+ * read into a reused direct buffer are the same as in the app. The file is written once and
+ * read again and again, so reads come from the page cache, as a hot disk cache would. Like
+ * the app, every read allocates its pixels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlurredImageCacheBenchmark {
+
+    /** Same header as {@code RawPixelImageCache}: magic, width, height, config code. */
+    private static final int MAGIC = 0x424c5250;
+    private static final int HEADER_SIZE = 16;
+    private static final int CONFIG_ARGB_8888 = 3;
+
+    /** Flickr size suffix of the source image. */
+    @Param({SyntheticImages.SIZE_PHONE, SyntheticImages.SIZE_TABLET})
+    public String size;
+
+    /** Downscale factor; the app currently uses 8. */
+    @Param({"8"})
+    public int scaleFactor;
+
+    /** Blur radius in downscaled pixels; the app currently uses 2. */
+    @Param({"2"})
+    public int radius;
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mBlurred;
+    private BufferedImage mImage;
+    private File mPngFile;
+    private File mRawFile;
+    private File mScratchFile;
+    private ByteBuffer mReadBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int sourceWidth = SyntheticImages.width(size);
+        int sourceHeight = SyntheticImages.height(size);
+        int[] source = SyntheticImages.create(sourceWidth, sourceHeight);
+        BlurGeometry geometry = BlurGeometry.compute(sourceWidth, sourceHeight, 0, 0, 0, 0, scaleFactor);
+        mWidth = geometry.dstWidth;
+        mHeight = geometry.dstHeight;
+        mBlurred = new int[mWidth * mHeight];
+        Downscaler.downscale(source, 0, sourceWidth, geometry, mBlurred, 0, mWidth);
+        StackBlur.blur(mBlurred, 0, mWidth, mWidth, mHeight, radius, StackBlur.KERNEL_PACKED,
+                new BlurWorkspace(), null, 1);
+
+        mImage = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_ARGB);
+        mImage.setRGB(0, 0, mWidth, mHeight, mBlurred, 0, mWidth);
+        mPngFile = File.createTempFile("blurred", ".png");
+        mRawFile = File.createTempFile("blurred", ".raw");
+        mScratchFile = File.createTempFile("blurred", ".tmp");
+        writePng(mPngFile);
+        writeRaw(mRawFile);
+        mReadBuffer = ByteBuffer.allocateDirect((int) mRawFile.length());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPngFile.delete();
+        mRawFile.delete();
+        mScratchFile.delete();
+    }
+
+    /** A cache hit with the PNG format. */
+    @Benchmark
+    public int[] readPng() throws IOException {
+        BufferedImage image = ImageIO.read(mPngFile);
+        return image.getRGB(0, 0, mWidth, mHeight, new int[mWidth * mHeight], 0, mWidth);
+    }
+
+    /** A cache hit with the raw format. */
+    @Benchmark
+    public int[] readRaw() throws IOException {
+        FileInputStream in = new FileInputStream(mRawFile);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = mReadBuffer;
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Short read");
+                }
+            }
+            buffer.flip();
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != mWidth || buffer.getInt() != mHeight
+                    || buffer.getInt() != CONFIG_ARGB_8888) {
+                throw new IOException("Bad header");
+            }
+            int[] pixels = new int[mWidth * mHeight];
+            buffer.order(ByteOrder.nativeOrder()).asIntBuffer().get(pixels);
+            return pixels;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Storing a blur with the PNG format. */
+    @Benchmark
+    public void writePng() throws IOException {
+        writePng(mScratchFile);
+    }
+
+    /** Storing a blur with the raw format. */
+    @Benchmark
+    public void writeRaw() throws IOException {
+        writeRaw(mScratchFile);
+    }
+
+    private void writePng(File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 8 * 1024);
+        try {
+            ImageIO.write(mImage, "png", out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeRaw(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mBlurred.length * 4);
+        buffer.putInt(MAGIC).putInt(mWidth).putInt(mHeight).putInt(CONFIG_ARGB_8888);
+        buffer.order(ByteOrder.nativeOrder()).asIntBuffer().put(mBlurred);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+    }
+}
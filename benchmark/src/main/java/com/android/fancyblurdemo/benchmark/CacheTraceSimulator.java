@@ -0,0 +1,244 @@
+package com.android.fancyblurdemo.benchmark;
+
+import com.android.fancyblurdemo.cachepolicy.AccessTrace;
+import com.android.fancyblurdemo.cachepolicy.TinyLfuCache;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Replays image cache traces against the bitmap cache policies and prints their hit ratios.
+ *
+ * Only the lookups are replayed. A lookup that misses is filled straight away, with the
+ * size the trace recorded for that key, so every policy sees the same requests whatever it
+ * happened to hold when the trace was recorded.
+ *
+ * Traces recorded by the app's {@code TraceRecordingImageCache} are passed as arguments.
+ * Without arguments, synthetic traces modelled on the app are replayed instead:
+ * <ul>
+ * <li>pager: {@code MainActivity} paging back and forth over a page of 50 photos and
+ * jumping back to one of a few favourites one time in five, with the pages either side of
+ * the current one loaded;</li>
+ * <li>favourites: the same, but jumping to a favourite three times in five;</li>
+ * <li>+dream: either, with a pass of {@code FlickrDream} over 50 photos, each loaded once
+ * along with the next one, after every 100 page views.</li>
+ * </ul>
+ * Each trace is replayed at several cache sizes. Run it with:
+ * <pre>
+ *   ./gradlew :benchmark:simulateCache [-PtraceFiles="a.trace b.trace"]
+ * </pre>
+ */
+public final class CacheTraceSimulator {
+
+    /** Cache sizes replayed, as heap/8 for 32, 64 and 128 MB heaps. */
+    private static final int[] CACHE_SIZES = { 4 << 20, 8 << 20, 16 << 20 };
+
+    /** Fixed window sizes replayed for TinyLFU, in percent; the adaptive window is replayed too. */
+    private static final int[] WINDOW_PERCENTS = { 1, 20, 50 };
+
+    /** Photos on a Flickr page. */
+    private static final int PAGE_PHOTOS = 50;
+
+    /** A TinyLFU cache of image sizes, sized in bytes. */
+    private static final class SizedTinyLfuCache extends TinyLfuCache<String, Integer> {
+        SizedTinyLfuCache(int maxSize, int expectedEntries, int windowPercent, boolean adaptive) {
+            super(maxSize, expectedEntries, windowPercent, adaptive);
+        }
+
+        @Override
+        protected int sizeOf(String key, Integer size) {
+            return size;
+        }
+    }
+
+    private CacheTraceSimulator() {
+        // no instances
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            replay("pager", createPagerTrace(0.2f, false));
+            replay("pager+dream", createPagerTrace(0.2f, true));
+            replay("favourites", createPagerTrace(0.6f, false));
+            replay("favourites+dream", createPagerTrace(0.6f, true));
+            return;
+        }
+        for (String file : args) {
+            Reader reader = new FileReader(file);
+            try {
+                replay(file, AccessTrace.read(reader));
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Prints the hit ratio of every policy at every cache size.
+     */
+    private static void replay(String name, AccessTrace trace) {
+        Map<String, Integer> sizes = putSizes(trace);
+        int averageSize = averagePutSize(trace);
+        System.out.println(name + ": " + trace.size() + " events, average image " + averageSize + " bytes");
+        StringBuilder header = new StringBuilder(String.format("  %10s %8s", "cache", "LRU"));
+        for (int windowPercent : WINDOW_PERCENTS) {
+            header.append(String.format(" %8s", "TLFU" + windowPercent + "%"));
+        }
+        header.append(String.format(" %8s", "TLFU-ad"));
+        System.out.println(header);
+        for (int cacheSize : CACHE_SIZES) {
+            StringBuilder row = new StringBuilder(String.format("  %8dMB", cacheSize >> 20));
+            row.append(String.format(" %7.1f%%", replayLru(trace, sizes, cacheSize)));
+            int expectedEntries = Math.max(1, cacheSize / averageSize);
+            for (int windowPercent : WINDOW_PERCENTS) {
+                row.append(String.format(" %7.1f%%", replayTinyLfu(trace, sizes,
+                        new SizedTinyLfuCache(cacheSize, expectedEntries, windowPercent, false))));
+            }
+            row.append(String.format(" %7.1f%%", replayTinyLfu(trace, sizes,
+                    new SizedTinyLfuCache(cacheSize, expectedEntries, TinyLfuCache.DEFAULT_WINDOW_PERCENT, true))));
+            System.out.println(row);
+        }
+    }
+
+    /**
+     * Replays the lookups of a trace against an LRU that evicts the way
+     * {@code android.util.LruCache} does. A miss is filled straight away, as the app does
+     * once the image has loaded.
+     * @return The hit ratio of the lookups, in percent.
+     */
+    private static double replayLru(AccessTrace trace, Map<String, Integer> sizes, int maxSize) {
+        LinkedHashMap<String, Integer> map = new LinkedHashMap<String, Integer>(0, 0.75f, true);
+        long size = 0;
+        int gets = 0;
+        int hits = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            if (trace.getType(i) != AccessTrace.GET) {
+                continue;
+            }
+            String key = trace.getKey(i);
+            gets++;
+            if (map.get(key) != null) {
+                hits++;
+                continue;
+            }
+            Integer bytes = sizes.get(key);
+            if (bytes == null) {
+                continue;
+            }
+            map.put(key, bytes);
+            size += bytes;
+            while (size > maxSize && !map.isEmpty()) {
+                Map.Entry<String, Integer> eldest = map.entrySet().iterator().next();
+                size -= eldest.getValue();
+                map.remove(eldest.getKey());
+            }
+        }
+        return gets != 0 ? 100.0 * hits / gets : 0;
+    }
+
+    /**
+     * Replays the lookups of a trace against a TinyLFU cache, filling misses straight away.
+     * @return The hit ratio of the lookups, in percent.
+     */
+    private static double replayTinyLfu(AccessTrace trace, Map<String, Integer> sizes,
+            SizedTinyLfuCache cache) {
+        for (int i = 0; i < trace.size(); i++) {
+            if (trace.getType(i) != AccessTrace.GET) {
+                continue;
+            }
+            String key = trace.getKey(i);
+            if (cache.get(key) == null) {
+                Integer bytes = sizes.get(key);
+                if (bytes != null) {
+                    cache.put(key, bytes);
+                }
+            }
+        }
+        int gets = cache.hitCount() + cache.missCount();
+        return gets != 0 ? 100.0 * cache.hitCount() / gets : 0;
+    }
+
+    /**
+     * Returns the size of every key that was put, from its last put.
+     */
+    private static Map<String, Integer> putSizes(AccessTrace trace) {
+        Map<String, Integer> sizes = new HashMap<String, Integer>();
+        for (int i = 0; i < trace.size(); i++) {
+            if (trace.getType(i) == AccessTrace.PUT) {
+                sizes.put(trace.getKey(i), trace.getSize(i));
+            }
+        }
+        return sizes;
+    }
+
+    private static int averagePutSize(AccessTrace trace) {
+        long total = 0;
+        int puts = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            if (trace.getType(i) == AccessTrace.PUT) {
+                total += trace.getSize(i);
+                puts++;
+            }
+        }
+        return puts != 0 ? (int) (total / puts) : 1;
+    }
+
+    /**
+     * Creates a synthetic trace of the pager, optionally interrupted by Dream passes. The
+     * seed is fixed so runs are comparable.
+     * @param favouriteRate The share of page views that jump to a favourite.
+     */
+    private static AccessTrace createPagerTrace(float favouriteRate, boolean withDream) {
+        Random random = new Random(42);
+        AccessTrace trace = new AccessTrace();
+        int[] favourites = { 3, 4, 11, 12, 20, 27, 35, 41 };
+        int page = 0;
+        int dreamPass = 0;
+        for (int view = 0; view < 5000; view++) {
+            float move = random.nextFloat();
+            if (move < favouriteRate) {
+                page = favourites[random.nextInt(favourites.length)];
+            } else if (move < favouriteRate + (1 - favouriteRate) / 2) {
+                page = Math.min(PAGE_PHOTOS - 1, page + 1);
+            } else {
+                page = Math.max(0, page - 1);
+            }
+            // The ViewPager keeps the pages either side loaded.
+            for (int neighbour = Math.max(0, page - 1); neighbour <= Math.min(PAGE_PHOTOS - 1, page + 1); neighbour++) {
+                load(trace, "pager/" + neighbour, photoBytes(neighbour));
+            }
+            if (withDream && view % 100 == 99) {
+                // The Dream shows its own copy of the feed, decoded for its own view size,
+                // and loads the next photo ahead of the one shown.
+                dreamPass++;
+                for (int photo = 0; photo < PAGE_PHOTOS; photo++) {
+                    load(trace, "dream" + dreamPass + "/" + photo, photoBytes(photo));
+                    load(trace, "dream" + dreamPass + "/" + (photo + 1), photoBytes(photo + 1));
+                }
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Records a lookup and the size of the image it loads.
+     */
+    private static void load(AccessTrace trace, String key, int bytes) {
+        trace.recordGet(key);
+        trace.recordPut(key, bytes);
+    }
+
+    /**
+     * Returns the decoded size of a photo: phone-sized, in landscape, portrait or square.
+     */
+    private static int photoBytes(int photo) {
+        int longSide = SyntheticImages.width(SyntheticImages.SIZE_PHONE);
+        int shortSide = SyntheticImages.height(SyntheticImages.SIZE_PHONE);
+        return (photo % 5 == 0 ? longSide * longSide : longSide * shortSide) * 4;
+    }
+}
@@ -0,0 +1,118 @@
+package com.android.fancyblurdemo.benchmark;
+
+import com.android.fancyblurdemo.volley.Cache;
+import com.android.fancyblurdemo.volley.toolbox.DiskBasedCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many entries per second volley's {@link DiskBasedCache} serves to several
+ * threads at once, the way the {@code CacheDispatcher} and the four
+ * {@code NetworkDispatcher}s share it.
+ *
+ * The cache holds a page of photos, sized like Flickr JPEGs, and is large enough that
+ * nothing is pruned. In the read group four threads each read random keys. In the mixed
+ * group three threads read while one rewrites random keys, as network responses arrive.
+ * The files are in the page cache after the first pass, so this measures the cache's own
+ * overhead and locking rather than the disk.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskBasedCacheBenchmark {
+
+    /** Number of distinct keys; a page of photos. */
+    private static final int KEY_COUNT = 50;
+
+    /** Size of each cached response, in bytes. */
+    @Param({"131072"})
+    public int entryBytes;
+
+    private File mDirectory;
+    private DiskBasedCache mCache;
+    private Cache.Entry mEntry;
+    private String[] mKeys;
+
+    /** Each thread's own choice of keys. */
+    @State(Scope.Thread)
+    public static class Keys {
+        private final Random mRandom = new Random();
+
+        int next() {
+            return mRandom.nextInt(KEY_COUNT);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("volley", "");
+        mDirectory.delete();
+        mCache = new DiskBasedCache(mDirectory, 64 * 1024 * 1024);
+        mCache.initialize();
+
+        mEntry = new Cache.Entry();
+        mEntry.data = new byte[entryBytes];
+        new Random(42).nextBytes(mEntry.data);
+        mEntry.etag = "\"5d8c72a5edda8d6a\"";
+        mEntry.serverDate = System.currentTimeMillis();
+        mEntry.ttl = mEntry.serverDate + TimeUnit.DAYS.toMillis(1);
+        mEntry.softTtl = mEntry.ttl;
+        mEntry.responseHeaders = Collections.singletonMap("Content-Type", "image/jpeg");
+
+        mKeys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            mKeys[i] = "http://farm4.staticflickr.com/3" + i + "/1234567" + i + "_8c6a0e1f2b_z.jpg";
+            mCache.put(mKeys[i], mEntry);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mCache.clear();
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    @Group("read")
+    @GroupThreads(4)
+    public Cache.Entry readOnly(Keys keys) {
+        return mCache.get(mKeys[keys.next()]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Cache.Entry mixedRead(Keys keys) {
+        return mCache.get(mKeys[keys.next()]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedWrite(Keys keys) {
+        mCache.put(mKeys[keys.next()], mEntry);
+    }
+}
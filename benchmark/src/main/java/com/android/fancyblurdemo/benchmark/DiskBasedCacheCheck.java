@@ -0,0 +1,381 @@
+package com.android.fancyblurdemo.benchmark;
+
+import com.android.fancyblurdemo.volley.Cache;
+import com.android.fancyblurdemo.volley.toolbox.DiskBasedCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that volley's {@link DiskBasedCache} recovers its index from its journal, and from
+ * its files when the journal is damaged or missing, the way a crash or a full disk leaves
+ * them on a device.
+ *
+ * Each check starts a new cache instance on the same directory, as a restart of the app
+ * does, and compares what it serves against what was put. Run it with:
+ * <pre>
+ *   ./gradlew :benchmark:checkDiskCache
+ * </pre>
+ * It exits with an {@link AssertionError} at the first failure.
+ */
+public final class DiskBasedCacheCheck {
+
+    /** Name of the journal in the cache directory. */
+    private static final String JOURNAL = "volley-journal";
+
+    /** Magic number of the first version of the cache file format. */
+    private static final int CACHE_MAGIC_V1 = 0x20120504;
+
+    /** Magic number of the current version of the cache file format. */
+    private static final int CACHE_MAGIC_V2 = 0x20140525;
+
+    private final File mDirectory;
+    private final File mJournal;
+
+    private DiskBasedCacheCheck(File directory) {
+        mDirectory = directory;
+        mJournal = new File(directory, JOURNAL);
+    }
+
+    public static void main(String[] args) throws Exception {
+        File directory = File.createTempFile("volley", "");
+        directory.delete();
+        DiskBasedCacheCheck check = new DiskBasedCacheCheck(directory);
+        try {
+            check.reload();
+            check.truncatedJournal();
+            check.corruptJournal();
+            check.reconcile();
+            check.accessOrder();
+            check.compaction();
+            check.concurrentCompaction();
+            check.clear();
+            check.oldFormat();
+        } finally {
+            new DiskBasedCache(directory).clear();
+            new File(directory, JOURNAL).delete();
+            directory.delete();
+        }
+        System.out.println("All checks passed.");
+    }
+
+    /** Puts, a remove and an invalidate survive a restart. */
+    private void reload() {
+        DiskBasedCache cache = open(Integer.MAX_VALUE);
+        check(mJournal.exists(), "a new cache starts a journal");
+        for (int i = 0; i < 100; i++) {
+            cache.put(key(i), entry(i));
+        }
+        cache.remove(key(5));
+        cache.invalidate(key(6), true);
+
+        cache = open(Integer.MAX_VALUE);
+        verify(cache, 7, 100, "puts reload from the journal");
+        check(cache.get(key(5)) == null, "a removed key stays removed");
+        Cache.Entry invalidated = cache.get(key(6));
+        check(invalidated.ttl == 0 && invalidated.softTtl == 0, "an invalidate survives a restart");
+    }
+
+    /** A journal cut short part way through a record, as a crash leaves it. */
+    private void truncatedJournal() throws IOException {
+        DiskBasedCache cache = open(Integer.MAX_VALUE);
+        cache.put(key(200), entry(200));
+        truncate(mJournal, mJournal.length() - 3);
+
+        cache = open(Integer.MAX_VALUE);
+        verify(cache, 7, 100, "records before the cut load");
+        verify(cache, 200, 201, "the entry of the cut record is read from its file");
+        cache.put(key(201), entry(201));
+        cache = open(Integer.MAX_VALUE);
+        verify(cache, 201, 202, "records appended after loading a cut journal survive");
+        verify(cache, 7, 100, "and so do the rest");
+    }
+
+    /** Journals that do not parse fall back to a scan of the files. */
+    private void corruptJournal() throws IOException {
+        overwrite(mJournal, 0, new byte[] { 0 });
+        DiskBasedCache cache = open(Integer.MAX_VALUE);
+        verify(cache, 7, 100, "a bad magic number falls back to a scan");
+        check(cache.get(key(5)) == null, "the scan does not bring back a removed key");
+
+        // After the magic number and version: the first record's type.
+        overwrite(mJournal, 8, new byte[] { 'Z' });
+        cache = open(Integer.MAX_VALUE);
+        verify(cache, 7, 100, "an unknown record type falls back to a scan");
+
+        // The length of the first record's key, after its type, size, magic and length.
+        overwrite(mJournal, 8 + 1 + 8 + 8, new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f });
+        cache = open(Integer.MAX_VALUE);
+        verify(cache, 7, 100, "a garbage length loses no files");
+    }
+
+    /** The journal disagrees with the directory, as after a crash between the two. */
+    private void reconcile() throws IOException {
+        DiskBasedCache cache = open(Integer.MAX_VALUE);
+        cache.getFileForKey(key(10)).delete();
+        File unreadable = new File(mDirectory, "12345");
+        new FileOutputStream(unreadable).close();
+        // Written by another instance, so this one's journal does not know it.
+        new DiskBasedCache(mDirectory, Integer.MAX_VALUE).put(key(300), entry(300));
+
+        cache = open(Integer.MAX_VALUE);
+        check(cache.get(key(10)) == null, "an entry whose file is gone is dropped");
+        check(!unreadable.exists(), "a file that is not a cache file is deleted");
+        verify(cache, 300, 301, "a cache file the journal does not know is read");
+        verify(cache, 11, 100, "the rest are intact");
+        cache.remove(key(300));
+    }
+
+    /** Reads are saved with the next snapshot and decide what is pruned after a restart. */
+    private void accessOrder() {
+        DiskBasedCache cache = open(Integer.MAX_VALUE);
+        // Enough reads to write a snapshot.
+        for (int i = 0; i < 2100; i++) {
+            cache.get(key(20 + i % 10));
+        }
+        // Room for the ten entries read, whose sizes include their headers after the scan
+        // above, but not for much else.
+        cache = open(4000);
+        cache.put(key(400), entry(0));
+        verify(cache, 20, 30, "recently read entries survive a prune after a restart");
+        check(cache.get(key(50)) == null, "older entries are pruned");
+    }
+
+    /** Compaction keeps the journal about the size of a snapshot. */
+    private void compaction() {
+        DiskBasedCache cache = open(Integer.MAX_VALUE);
+        for (int i = 0; i < 10000; i++) {
+            cache.put(key(20 + i % 10), entry(20 + i % 10));
+        }
+        check(mJournal.length() < 2100 * 300, "the journal is compacted: " + mJournal.length() + " bytes");
+        cache = open(Integer.MAX_VALUE);
+        verify(cache, 20, 30, "entries reload after compactions");
+    }
+
+    /** Readers and writers on several threads while the journal is compacted. */
+    private void concurrentCompaction() throws InterruptedException {
+        final DiskBasedCache cache = open(Integer.MAX_VALUE);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 3000; i++) {
+                            int k = 500 + random.nextInt(200);
+                            int op = random.nextInt(10);
+                            if (op < 5) {
+                                Cache.Entry e = cache.get(key(k));
+                                if (e != null && e.data.length != entry(k).data.length) {
+                                    throw new AssertionError("wrong entry for " + key(k));
+                                }
+                            } else if (op < 9) {
+                                cache.put(key(k), entry(k));
+                            } else {
+                                cache.remove(key(k));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        check(error.get() == null, "concurrent reads, puts and removes: " + error.get());
+
+        DiskBasedCache reopened = open(Integer.MAX_VALUE);
+        for (int k = 500; k < 700; k++) {
+            boolean live = cache.get(key(k)) != null;
+            if (live != (reopened.get(key(k)) != null)) {
+                throw new AssertionError("restart disagrees about " + key(k));
+            }
+        }
+        check(true, "a restart serves the same keys");
+    }
+
+    /** Clearing leaves an empty journal that keeps recording. */
+    private void clear() {
+        DiskBasedCache cache = open(Integer.MAX_VALUE);
+        cache.clear();
+        check(mJournal.exists() && mDirectory.list().length == 1, "clear leaves only an empty journal");
+        cache = open(Integer.MAX_VALUE);
+        check(cache.get(key(20)) == null, "a cleared cache reloads empty");
+        for (int i = 0; i < 10; i++) {
+            cache.put(key(i), entry(i));
+        }
+        cache = open(Integer.MAX_VALUE);
+        verify(cache, 0, 10, "puts after a clear survive a restart");
+    }
+
+    /** Files in the first version of the format are read, and rewritten when they are. */
+    private void oldFormat() throws IOException {
+        DiskBasedCache cache = open(Integer.MAX_VALUE);
+        cache.clear();
+        for (int i = 0; i < 20; i++) {
+            writeOldFormat(cache.getFileForKey(key(i)), key(i), entry(i));
+        }
+        mJournal.delete();
+
+        cache = open(Integer.MAX_VALUE);
+        check(countMagic(cache, 20, CACHE_MAGIC_V1) == 20, "old files are left alone until read");
+        verify(cache, 0, 20, "old files read back");
+        check(countMagic(cache, 20, CACHE_MAGIC_V2) == 20, "old files are rewritten when read");
+        verify(cache, 0, 20, "rewritten files read back");
+        mJournal.delete();
+        verify(open(Integer.MAX_VALUE), 0, 20, "rewritten files scan");
+
+        File file = cache.getFileForKey(key(5));
+        truncate(file, 20);
+        check(cache.get(key(5)) == null && !file.exists(), "a file cut short in its header is a miss and removed");
+    }
+
+    private DiskBasedCache open(int maxSize) {
+        DiskBasedCache cache = new DiskBasedCache(mDirectory, maxSize);
+        cache.initialize();
+        return cache;
+    }
+
+    private static String key(int i) {
+        return "http://farm4.staticflickr.com/" + i + "/1234567_8c6a0e1f2b_z.jpg";
+    }
+
+    private static Cache.Entry entry(int i) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[100 + i];
+        new Random(i).nextBytes(entry.data);
+        entry.etag = i % 2 == 0 ? null : "\"" + i + "\"";
+        entry.serverDate = i;
+        entry.ttl = 1000 + i;
+        entry.softTtl = 500 + i;
+        entry.responseHeaders = Collections.singletonMap("X-Photo", Integer.toString(i));
+        return entry;
+    }
+
+    private static void verify(DiskBasedCache cache, int from, int to, String message) {
+        for (int i = from; i < to; i++) {
+            Cache.Entry expected = entry(i);
+            Cache.Entry actual = cache.get(key(i));
+            if (actual == null || !Arrays.equals(expected.data, actual.data)
+                    || !(expected.etag == null ? actual.etag == null : expected.etag.equals(actual.etag))
+                    || expected.serverDate != actual.serverDate
+                    || expected.responseHeaders.get("X-Photo") == null
+                    || !expected.responseHeaders.get("X-Photo").equals(actual.responseHeaders.get("X-Photo"))) {
+                throw new AssertionError(message + ": " + key(i));
+            }
+            // An invalidate zeroes the TTLs; anything else keeps them.
+            if (actual.ttl != expected.ttl && actual.ttl != 0) {
+                throw new AssertionError(message + ": ttl of " + key(i));
+            }
+        }
+        check(true, message);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("ok  " + message);
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void overwrite(File file, long offset, byte[] bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            raf.write(bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Returns how many of the first {@code count} keys' files start with {@code magic}. */
+    private static int countMagic(DiskBasedCache cache, int count, int magic) throws IOException {
+        int matches = 0;
+        for (int i = 0; i < count; i++) {
+            if (readMagic(cache.getFileForKey(key(i))) == magic) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private static int readMagic(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] b = new byte[4];
+            if (in.read(b) != 4) {
+                throw new IOException("Short file " + file);
+            }
+            return (b[0] & 0xff) | (b[1] & 0xff) << 8 | (b[2] & 0xff) << 16 | (b[3] & 0xff) << 24;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes an entry the way the first version of the format did: the fields one after
+     * another, little endian, with no length before them.
+     */
+    private static void writeOldFormat(File file, String key, Cache.Entry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeInt(out, CACHE_MAGIC_V1);
+        writeString(out, key);
+        writeString(out, entry.etag == null ? "" : entry.etag);
+        writeLong(out, entry.serverDate);
+        writeLong(out, entry.ttl);
+        writeLong(out, entry.softTtl);
+        writeInt(out, entry.responseHeaders.size());
+        for (java.util.Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+            writeString(out, header.getKey());
+            writeString(out, header.getValue());
+        }
+        out.write(entry.data);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            out.writeTo(fos);
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int n) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            out.write(n >>> shift);
+        }
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long n) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            out.write((int) (n >>> shift));
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        writeLong(out, bytes.length);
+        out.write(bytes);
+    }
+}
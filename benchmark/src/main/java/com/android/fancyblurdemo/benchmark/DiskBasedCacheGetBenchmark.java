@@ -0,0 +1,108 @@
+package com.android.fancyblurdemo.benchmark;
+
+import com.android.fancyblurdemo.volley.Cache;
+import com.android.fancyblurdemo.volley.toolbox.DiskBasedCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of one {@link DiskBasedCache#get(String)} and one
+ * {@link DiskBasedCache#put(String, Cache.Entry)} on a single thread, for a small API
+ * response and for a photo.
+ *
+ * Each entry carries the headers a real response does, so the cost of reading and writing
+ * the header shows. The files are in the page cache after the first pass, so this measures
+ * the system calls and copying of the cache itself rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskBasedCacheGetBenchmark {
+
+    /** Number of distinct keys; a page of photos. */
+    private static final int KEY_COUNT = 50;
+
+    /** Size of each cached response, in bytes. */
+    @Param({"2048", "131072"})
+    public int entryBytes;
+
+    private File mDirectory;
+    private DiskBasedCache mCache;
+    private Cache.Entry mEntry;
+    private String[] mKeys;
+    private int mNext = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("volley", "");
+        mDirectory.delete();
+        mCache = new DiskBasedCache(mDirectory, 64 * 1024 * 1024);
+        mCache.initialize();
+
+        mEntry = new Cache.Entry();
+        mEntry.data = new byte[entryBytes];
+        new Random(42).nextBytes(mEntry.data);
+        mEntry.etag = "\"5d8c72a5edda8d6a\"";
+        mEntry.serverDate = System.currentTimeMillis();
+        mEntry.ttl = mEntry.serverDate + TimeUnit.DAYS.toMillis(1);
+        mEntry.softTtl = mEntry.ttl;
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "image/jpeg");
+        headers.put("Cache-Control", "max-age=315360000");
+        headers.put("Last-Modified", "Tue, 04 Mar 2014 18:21:43 GMT");
+        headers.put("Server", "ATS");
+        headers.put("Connection", "keep-alive");
+        headers.put("Age", "4152");
+        mEntry.responseHeaders = headers;
+
+        mKeys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            mKeys[i] = "http://farm4.staticflickr.com/3" + i + "/1234567" + i + "_8c6a0e1f2b_z.jpg";
+            mCache.put(mKeys[i], mEntry);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mCache.clear();
+        new File(mDirectory, "volley-journal").delete();
+        mDirectory.delete();
+    }
+
+    private String nextKey() {
+        mNext = (mNext + 1) % KEY_COUNT;
+        return mKeys[mNext];
+    }
+
+    @Benchmark
+    public Cache.Entry get() {
+        return mCache.get(nextKey());
+    }
+
+    @Benchmark
+    public void put() {
+        mCache.put(nextKey(), mEntry);
+    }
+}
@@ -0,0 +1,104 @@
+package com.android.fancyblurdemo.benchmark;
+
+import com.android.fancyblurdemo.volley.Cache;
+import com.android.fancyblurdemo.volley.toolbox.DiskBasedCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long volley's {@link DiskBasedCache#initialize()} takes, which the
+ * {@code CacheDispatcher} runs before it serves the first request.
+ *
+ * The cache holds small responses, like the Flickr API's JSON, with the headers a real
+ * response carries. It is initialized either from its journal, or by scanning the header of
+ * every file, as it does when the journal is missing; the scan then writes a new journal, as
+ * it would on a device. The files are in the page cache after the first iteration, so this
+ * is a warm start: a cold start on flash pays for every file it opens on top.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskBasedCacheStartupBenchmark {
+
+    /** Number of cached entries. */
+    @Param({"1000", "10000"})
+    public int entries;
+
+    /** How the index is loaded: from the "journal", or by a "scan" of the files. */
+    @Param({"journal", "scan"})
+    public String index;
+
+    private File mDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("volley", "");
+        mDirectory.delete();
+        DiskBasedCache cache = new DiskBasedCache(mDirectory, Integer.MAX_VALUE);
+        cache.initialize();
+
+        Random random = new Random(42);
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[2048];
+        random.nextBytes(entry.data);
+        entry.serverDate = System.currentTimeMillis();
+        entry.ttl = entry.serverDate + TimeUnit.HOURS.toMillis(1);
+        entry.softTtl = entry.ttl;
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/json; charset=utf-8");
+        headers.put("Cache-Control", "public, max-age=3600");
+        headers.put("Server", "ATS");
+        headers.put("Vary", "Accept-Encoding");
+        headers.put("Connection", "keep-alive");
+        entry.responseHeaders = headers;
+        for (int i = 0; i < entries; i++) {
+            entry.etag = "\"" + Long.toHexString(random.nextLong()) + "\"";
+            headers.put("Date", Long.toString(entry.serverDate + i));
+            cache.put("https://api.flickr.com/services/rest/?method=flickr.photos.getInfo&photo_id="
+                    + (1000000 + i) + "&format=json", entry);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteJournal() {
+        if ("scan".equals(index)) {
+            new File(mDirectory, "volley-journal").delete();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        new DiskBasedCache(mDirectory).clear();
+        new File(mDirectory, "volley-journal").delete();
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public DiskBasedCache initialize() {
+        DiskBasedCache cache = new DiskBasedCache(mDirectory, Integer.MAX_VALUE);
+        cache.initialize();
+        return cache;
+    }
+}
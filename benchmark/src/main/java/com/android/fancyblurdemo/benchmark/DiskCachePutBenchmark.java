@@ -0,0 +1,104 @@
+package com.android.fancyblurdemo.benchmark;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures puts per second into the {@link DiskLruCache} that holds blurred images, with
+ * an explicit {@link DiskLruCache#flush()} after every put, as the disk image caches used
+ * to, once every few puts, and with no explicit flush, as they do now. {@link DiskLruCache}
+ * already flushes its journal in {@code edit()} and {@code commit()}, so the explicit flush
+ * only adds a journal write.
+ *
+ * Each put writes one blurred image in the raw format of {@code RawPixelImageCache} and
+ * commits it. Keys cycle through a page's worth of images, so entries are overwritten the
+ * way a user paging back and forth overwrites them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskCachePutBenchmark {
+
+    /** Number of distinct keys written. */
+    private static final int KEY_COUNT = 64;
+
+    /** Raw format header size. */
+    private static final int HEADER_SIZE = 16;
+
+    /** Flickr size suffix of the source image. */
+    @Param({SyntheticImages.SIZE_PHONE, SyntheticImages.SIZE_TABLET})
+    public String size;
+
+    /** Downscale factor; the app currently uses 8. */
+    @Param({"8"})
+    public int scaleFactor;
+
+    /** Puts per explicit flush; 1 is the old behavior, 0 (no explicit flush) the current one. */
+    @Param({"0", "1", "16"})
+    public int batchPuts;
+
+    private File mDirectory;
+    private DiskLruCache mCache;
+    private byte[] mEntry;
+    private String[] mKeys;
+    private int mNextKey;
+    private int mUnflushedPuts;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int width = SyntheticImages.width(size) / scaleFactor;
+        int height = SyntheticImages.height(size) / scaleFactor;
+        mEntry = new byte[HEADER_SIZE + width * height * 4];
+        mKeys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            mKeys[i] = String.valueOf(("http://farm.example.com/photo" + i).hashCode());
+        }
+        mDirectory = File.createTempFile("blurcache", "");
+        mDirectory.delete();
+        mCache = DiskLruCache.open(mDirectory, 1, 1, 64L * 1024 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mCache.delete();
+    }
+
+    @Benchmark
+    public void put() throws IOException {
+        String key = mKeys[mNextKey];
+        mNextKey = (mNextKey + 1) % KEY_COUNT;
+        DiskLruCache.Editor editor = mCache.edit(key);
+        OutputStream out = editor.newOutputStream(0);
+        try {
+            out.write(mEntry);
+        } finally {
+            out.close();
+        }
+        editor.commit();
+        if (batchPuts > 0 && ++mUnflushedPuts >= batchPuts) {
+            mUnflushedPuts = 0;
+            mCache.flush();
+        }
+    }
+}
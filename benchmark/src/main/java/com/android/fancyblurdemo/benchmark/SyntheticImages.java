@@ -0,0 +1,57 @@
+package com.android.fancyblurdemo.benchmark;
+
+import java.util.Random;
+
+/**
+ * Synthetic ARGB images sized like the Flickr photos the app shows.
+ */
+final class SyntheticImages {
+
+    /** Flickr "_z" size, used on phones. 640 on the longest side. */
+    static final String SIZE_PHONE = "z";
+
+    /** Flickr "_b" size, used on tablets. 1024 on the longest side. */
+    static final String SIZE_TABLET = "b";
+
+    private SyntheticImages() {
+        // no instances
+    }
+
+    /**
+     * Returns the landscape width of the given Flickr size suffix.
+     */
+    static int width(String size) {
+        if (SIZE_PHONE.equals(size)) {
+            return 640;
+        } else if (SIZE_TABLET.equals(size)) {
+            return 1024;
+        }
+        throw new IllegalArgumentException("Unknown Flickr size: " + size);
+    }
+
+    /**
+     * Returns the landscape height of the given Flickr size suffix, for a 3:2 photo.
+     */
+    static int height(String size) {
+        return width(size) * 2 / 3;
+    }
+
+    /**
+     * Creates an opaque image of smooth gradients with some noise on top, which is
+     * closer to a photo than pure noise. The seed is fixed so runs are comparable.
+     */
+    static int[] create(int width, int height) {
+        Random random = new Random(42);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(32);
+                int r = (x * 255 / width + noise) & 0xff;
+                int g = (y * 255 / height + noise) & 0xff;
+                int b = ((x + y) * 127 / (width + height) + noise) & 0xff;
+                pixels[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+}
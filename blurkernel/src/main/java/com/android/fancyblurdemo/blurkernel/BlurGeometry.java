@@ -0,0 +1,76 @@
+package com.android.fancyblurdemo.blurkernel;
+
+/**
+ * The crop and downscale math for a blur.
+ *
+ * A blur takes a crop rectangle out of the source image, scales it down by
+ * {@link #scaleFactor} and blurs the small result. A crop size of 0 means the
+ * whole image in that dimension.
+ */
+public final class BlurGeometry {
+
+    /** Left edge of the crop in source pixels. */
+    public final int srcLeft;
+
+    /** Top edge of the crop in source pixels. */
+    public final int srcTop;
+
+    /** Width of the crop in source pixels. */
+    public final int srcWidth;
+
+    /** Height of the crop in source pixels. */
+    public final int srcHeight;
+
+    /** Width of the downscaled image. */
+    public final int dstWidth;
+
+    /** Height of the downscaled image. */
+    public final int dstHeight;
+
+    /** How many source pixels map onto one downscaled pixel in each direction. */
+    public final float scaleFactor;
+
+    private BlurGeometry(int srcLeft, int srcTop, int srcWidth, int srcHeight,
+                         int dstWidth, int dstHeight, float scaleFactor) {
+        this.srcLeft = srcLeft;
+        this.srcTop = srcTop;
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        this.scaleFactor = scaleFactor;
+    }
+
+    /**
+     * Computes the geometry of a blur.
+     *
+     * @param imageWidth Width of the source image
+     * @param imageHeight Height of the source image
+     * @param cropWidth Width of the crop, or 0 for the image width
+     * @param cropHeight Height of the crop, or 0 for the image height
+     * @param left Left edge of the crop, negative values are treated as 0
+     * @param top Top edge of the crop, negative values are treated as 0
+     * @param scaleFactor Downscale factor, at least 1
+     * @return The geometry.
+     */
+    public static BlurGeometry compute(int imageWidth, int imageHeight, int cropWidth,
+                                       int cropHeight, int left, int top, float scaleFactor) {
+        if (scaleFactor < 1) {
+            throw new IllegalArgumentException("scaleFactor must be at least 1");
+        }
+        int srcWidth = cropWidth == 0 ? imageWidth : cropWidth;
+        int srcHeight = cropHeight == 0 ? imageHeight : cropHeight;
+        // Never produce an empty image, it cannot be turned into a bitmap.
+        int dstWidth = Math.max(1, (int) (srcWidth / scaleFactor));
+        int dstHeight = Math.max(1, (int) (srcHeight / scaleFactor));
+        return new BlurGeometry(Math.max(left, 0), Math.max(top, 0), srcWidth, srcHeight,
+                dstWidth, dstHeight, scaleFactor);
+    }
+
+    /**
+     * Returns true if the crop lies entirely inside a {@code width} x {@code height} image.
+     */
+    public boolean fitsIn(int width, int height) {
+        return srcLeft + srcWidth <= width && srcTop + srcHeight <= height;
+    }
+}
@@ -0,0 +1,163 @@
+package com.android.fancyblurdemo.blurkernel;
+
+/**
+ * Layout of a blur pyramid packed into a single atlas image.
+ *
+ * Level 0 is the downscaled image and fills the top of the atlas. Every further
+ * level is half the size of the one before and sits in a strip below level 0, left
+ * to right. Blurring each level with the same radius doubles the apparent blur from
+ * one level to the next, so a viewer can show any amount of blur by cross-fading two
+ * neighbouring levels. The atlas is as wide as level 0 and at most 1.5 times as
+ * tall.
+ */
+public final class BlurPyramid {
+
+    /** Largest number of levels a pyramid may have. */
+    public static final int MAX_LEVELS = 4;
+
+    /** Number of levels; may be fewer than requested for very narrow images. */
+    public final int levels;
+
+    /** Width of the atlas. */
+    public final int atlasWidth;
+
+    /** Height of the atlas. */
+    public final int atlasHeight;
+
+    private final int[] mLeft;
+    private final int[] mTop;
+    private final int[] mWidth;
+    private final int[] mHeight;
+
+    private BlurPyramid(int baseWidth, int baseHeight, int maxLevels) {
+        // Very narrow images cannot fit every level in the strip below level 0, so they
+        // get fewer levels.
+        int levels = 1;
+        int stripWidth = 0;
+        int levelWidth = baseWidth;
+        while (levels < maxLevels) {
+            levelWidth = Math.max(1, levelWidth >> 1);
+            if (stripWidth + levelWidth > baseWidth) {
+                break;
+            }
+            stripWidth += levelWidth;
+            levels++;
+        }
+
+        this.levels = levels;
+        mLeft = new int[levels];
+        mTop = new int[levels];
+        mWidth = new int[levels];
+        mHeight = new int[levels];
+
+        mWidth[0] = baseWidth;
+        mHeight[0] = baseHeight;
+        int left = 0;
+        for (int level = 1; level < levels; level++) {
+            mWidth[level] = Math.max(1, mWidth[level - 1] >> 1);
+            mHeight[level] = Math.max(1, mHeight[level - 1] >> 1);
+            mLeft[level] = left;
+            mTop[level] = baseHeight;
+            left += mWidth[level];
+        }
+        atlasWidth = baseWidth;
+        atlasHeight = baseHeight + (levels > 1 ? mHeight[1] : 0);
+    }
+
+    /**
+     * Lays out a pyramid whose level 0 is {@code baseWidth} x {@code baseHeight}.
+     *
+     * @param baseWidth Width of level 0, at least 1
+     * @param baseHeight Height of level 0, at least 1
+     * @param levels Number of levels, between 1 and {@link #MAX_LEVELS}
+     * @return The layout. Its atlas is always as wide as level 0.
+     */
+    public static BlurPyramid layout(int baseWidth, int baseHeight, int levels) {
+        if (levels < 1 || levels > MAX_LEVELS) {
+            throw new IllegalArgumentException("levels must be between 1 and " + MAX_LEVELS);
+        }
+        if (baseWidth < 1 || baseHeight < 1) {
+            throw new IllegalArgumentException("pyramid must not be empty");
+        }
+        return new BlurPyramid(baseWidth, baseHeight, levels);
+    }
+
+    /**
+     * Recovers the layout of an atlas of the given size. The atlas size grows strictly
+     * with the base size, so this is the inverse of {@link #layout(int, int, int)}.
+     *
+     * @return The layout, or null if no pyramid has an atlas of this size.
+     */
+    public static BlurPyramid fromAtlas(int atlasWidth, int atlasHeight, int levels) {
+        if (layout(atlasWidth, 1, levels).levels == 1) {
+            return layout(atlasWidth, atlasHeight, levels);
+        }
+        // The strip below level 0 is half its height, rounded down.
+        int baseHeight = Math.max(1, atlasHeight * 2 / 3);
+        for (int h = Math.max(1, baseHeight - 1); h <= baseHeight + 1; h++) {
+            BlurPyramid pyramid = layout(atlasWidth, h, levels);
+            if (pyramid.atlasHeight == atlasHeight) {
+                return pyramid;
+            }
+        }
+        return null;
+    }
+
+    public int getLeft(int level) {
+        return mLeft[level];
+    }
+
+    public int getTop(int level) {
+        return mTop[level];
+    }
+
+    public int getWidth(int level) {
+        return mWidth[level];
+    }
+
+    public int getHeight(int level) {
+        return mHeight[level];
+    }
+
+    /**
+     * Returns the index of the top left pixel of a level in an atlas buffer whose
+     * stride is {@link #atlasWidth}.
+     */
+    public int getOffset(int level) {
+        return mTop[level] * atlasWidth + mLeft[level];
+    }
+
+    /**
+     * Fills a level by downscaling the level above it. Call this once the level above
+     * has been blurred, so every level builds on the blur of the previous one.
+     *
+     * @param atlas Atlas pixels with a stride of {@link #atlasWidth}
+     * @param level The level to fill, at least 1
+     */
+    public void downscaleLevel(int[] atlas, int level) {
+        Downscaler.downscale(atlas, getOffset(level - 1), atlasWidth,
+                mWidth[level - 1], mHeight[level - 1],
+                atlas, getOffset(level), atlasWidth, mWidth[level], mHeight[level]);
+    }
+
+    /**
+     * Clears the parts of the atlas strip that no level covers, so stale pixels from a
+     * reused buffer do not end up in the image.
+     */
+    public void clearPadding(int[] atlas) {
+        for (int y = mHeight[0]; y < atlasHeight; y++) {
+            int row = y * atlasWidth;
+            int x = 0;
+            for (int level = 1; level < levels; level++) {
+                int end = y < mTop[level] + mHeight[level] ? mLeft[level] : mLeft[level] + mWidth[level];
+                for (; x < end; x++) {
+                    atlas[row + x] = 0;
+                }
+                x = mLeft[level] + mWidth[level];
+            }
+            for (; x < atlasWidth; x++) {
+                atlas[row + x] = 0;
+            }
+        }
+    }
+}
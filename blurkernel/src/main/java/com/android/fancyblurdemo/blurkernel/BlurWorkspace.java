@@ -0,0 +1,438 @@
+package com.android.fancyblurdemo.blurkernel;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Scratch state for the blur kernels.
+ *
+ * Every buffer grows to the largest image seen and is then reused, so once the
+ * workspace has warmed up a blur does not allocate. A workspace belongs to a
+ * single thread and must not be shared.
+ */
+public final class BlurWorkspace {
+
+    /**
+     * Number of rows or columns a blur processes between two checks for cancellation.
+     * Small enough to stop within a fraction of a millisecond, large enough that the
+     * check does not show up in the kernel's cost.
+     */
+    static final int CANCEL_CHECK_INTERVAL = 32;
+
+    /** ARGB pixel buffer handed out by {@link #getPixelBuffer(int, int)}. */
+    private int[] mPixels = new int[0];
+
+    /** Source pixel buffer handed out by {@link #getSourceBuffer(int, int)}. */
+    private int[] mSource = new int[0];
+
+    /** Per-channel output of the horizontal pass of the reference kernel. */
+    int[] r = new int[0];
+    int[] g = new int[0];
+    int[] b = new int[0];
+
+    /** Output of the horizontal pass of the packed kernel, as 0x00RRGGBB. */
+    int[] rgb = new int[0];
+
+    /** Second 0x00RRGGBB plane, used by {@link BoxBlur} together with {@link #rgb}. */
+    int[] rgb2 = new int[0];
+
+    /** Per-column running sums of the {@link BoxBlur} vertical pass, two per column. */
+    int[] boxSums = new int[0];
+
+    /** Clamped edge lookups for the horizontal and vertical passes. */
+    int[] vminX = new int[0];
+    int[] vminY = new int[0];
+
+    /** Division lookup tables, indexed by radius. */
+    private int[][] mDivTables = new int[0][];
+
+    /** Box division lookup tables, indexed by box width. */
+    private int[][] mBoxDivTables = new int[0][];
+
+    /** Box widths of the box blur, indexed by radius. */
+    private int[][] mBoxSizes = new int[0][];
+
+    /** One stack per band, indexed by band. */
+    private int[][][] mStacks = new int[0][][];
+
+    /** One packed stack per band, indexed by band. */
+    private int[][] mPackedStacks = new int[0][];
+
+    /** Band tasks, reused for every parallel pass. */
+    private BandTask[] mBandTasks = new BandTask[0];
+
+    /** Number of bands of the current pass that have not finished yet. */
+    private int mPendingBands;
+
+    /** Polled by every blur run with this workspace, if set. */
+    private volatile Cancelable mCancelable;
+
+    /**
+     * Returns a reusable pixel buffer that can hold a {@code w} x {@code h} image. Callers
+     * that read pixels out of a bitmap can blur them here without allocating. The
+     * contents are overwritten by the next call.
+     */
+    public int[] getPixelBuffer(int w, int h) {
+        if (mPixels.length < w * h) {
+            mPixels = new int[w * h];
+        }
+        return mPixels;
+    }
+
+    /**
+     * Returns a second reusable pixel buffer that can hold a {@code w} x {@code h} image,
+     * for callers that downscale a source image into the buffer returned by
+     * {@link #getPixelBuffer(int, int)}. The contents are overwritten by the next call.
+     */
+    public int[] getSourceBuffer(int w, int h) {
+        if (mSource.length < w * h) {
+            mSource = new int[w * h];
+        }
+        return mSource;
+    }
+
+    /**
+     * Sets what the blurs run with this workspace check for cancellation. A canceled blur
+     * throws {@link CancellationException} and leaves its pixels partly blurred.
+     *
+     * @param cancelable The cancelable, or null to always run blurs to completion.
+     */
+    public void setCancelable(Cancelable cancelable) {
+        mCancelable = cancelable;
+    }
+
+    /**
+     * Drops the buffers that grow with the image size, so the memory can be reclaimed
+     * while no blur is running. The next blur allocates them again. The lookup tables
+     * and stacks depend only on the radius and are small, so they are kept. Must not be
+     * called while a blur is running with this workspace.
+     *
+     * @return The number of bytes the dropped buffers held.
+     */
+    public long release() {
+        long ints = (long) mPixels.length + mSource.length + r.length + g.length + b.length
+                + rgb.length + rgb2.length + boxSums.length + vminX.length + vminY.length;
+        mPixels = new int[0];
+        mSource = new int[0];
+        r = new int[0];
+        g = new int[0];
+        b = new int[0];
+        rgb = new int[0];
+        rgb2 = new int[0];
+        boxSums = new int[0];
+        vminX = new int[0];
+        vminY = new int[0];
+        for (BandTask task : mBandTasks) {
+            // Let go of the last image the band worked on.
+            task.set(null, 0, 0, 0, 0, 0, 0, null, 0, 0, false);
+        }
+        return ints * 4;
+    }
+
+    /**
+     * Returns true if the current blur should stop.
+     */
+    boolean isCanceled() {
+        Cancelable cancelable = mCancelable;
+        return cancelable != null && cancelable.isCanceled();
+    }
+
+    /**
+     * Throws {@link CancellationException} if the current blur should stop. Only call this
+     * on the thread that started the blur, never from a band.
+     */
+    void throwIfCanceled() {
+        if (isCanceled()) {
+            throw new CancellationException("blur canceled");
+        }
+    }
+
+    /**
+     * Grows the planes and lookup buffers so they can hold a {@code w} x {@code h} image.
+     * Only the planes of the given kernel are grown.
+     */
+    void ensureCapacity(int w, int h, int kernel) {
+        int wh = w * h;
+        if (kernel == StackBlur.KERNEL_PACKED) {
+            if (rgb.length < wh) {
+                rgb = new int[wh];
+            }
+        } else if (r.length < wh) {
+            r = new int[wh];
+            g = new int[wh];
+            b = new int[wh];
+        }
+        if (vminX.length < w) {
+            vminX = new int[w];
+        }
+        if (vminY.length < h) {
+            vminY = new int[h];
+        }
+    }
+
+    /**
+     * Grows the planes and column sums used by {@link BoxBlur} so they can hold a
+     * {@code w} x {@code h} image.
+     */
+    void ensureBoxCapacity(int w, int h) {
+        int wh = w * h;
+        if (rgb.length < wh) {
+            rgb = new int[wh];
+        }
+        if (rgb2.length < wh) {
+            rgb2 = new int[wh];
+        }
+        if (boxSums.length < 2 * w) {
+            boxSums = new int[2 * w];
+        }
+    }
+
+    /**
+     * Returns the box widths that match a stack blur of the given radius, computing
+     * them on first use.
+     */
+    int[] getBoxSizes(int radius) {
+        if (mBoxSizes.length <= radius) {
+            int[][] sizes = new int[radius + 1][];
+            System.arraycopy(mBoxSizes, 0, sizes, 0, mBoxSizes.length);
+            mBoxSizes = sizes;
+        }
+        int[] sizes = mBoxSizes[radius];
+        if (sizes == null) {
+            sizes = BoxBlur.computeBoxSizes(radius);
+            mBoxSizes[radius] = sizes;
+        }
+        return sizes;
+    }
+
+    /**
+     * Returns the division table for a box of the given width, building it on first use.
+     */
+    int[] getBoxDivTable(int size) {
+        if (mBoxDivTables.length <= size) {
+            int[][] tables = new int[size + 1][];
+            System.arraycopy(mBoxDivTables, 0, tables, 0, mBoxDivTables.length);
+            mBoxDivTables = tables;
+        }
+        int[] dv = mBoxDivTables[size];
+        if (dv == null) {
+            dv = new int[256 * size];
+            for (int i = 0; i < 256 * size; i++) {
+                dv[i] = (i / size);
+            }
+            mBoxDivTables[size] = dv;
+        }
+        return dv;
+    }
+
+    /**
+     * Returns the division table for the given radius, building it on first use.
+     */
+    int[] getDivTable(int radius) {
+        if (mDivTables.length <= radius) {
+            int[][] tables = new int[radius + 1][];
+            System.arraycopy(mDivTables, 0, tables, 0, mDivTables.length);
+            mDivTables = tables;
+        }
+        int[] dv = mDivTables[radius];
+        if (dv == null) {
+            int div = radius + radius + 1;
+            int divsum = (div + 1) >> 1;
+            divsum *= divsum;
+            dv = new int[256 * divsum];
+            for (int i = 0; i < 256 * divsum; i++) {
+                dv[i] = (i / divsum);
+            }
+            mDivTables[radius] = dv;
+        }
+        return dv;
+    }
+
+    /**
+     * Makes sure every one of {@code bands} bands has a stack for a {@code div} wide kernel.
+     *
+     * This must run on the thread that starts the blur, before any band is handed to
+     * another thread: the band threads only read the stack arrays, so growing them here
+     * keeps two bands from racing to replace the same array.
+     */
+    void ensureStacks(int bands, int div, int kernel) {
+        if (kernel == StackBlur.KERNEL_PACKED) {
+            if (mPackedStacks.length < bands) {
+                int[][] stacks = new int[bands][];
+                System.arraycopy(mPackedStacks, 0, stacks, 0, mPackedStacks.length);
+                mPackedStacks = stacks;
+            }
+            for (int band = 0; band < bands; band++) {
+                int[] stack = mPackedStacks[band];
+                if (stack == null || stack.length < 2 * div) {
+                    mPackedStacks[band] = new int[2 * div];
+                }
+            }
+        } else {
+            if (mStacks.length < bands) {
+                int[][][] stacks = new int[bands][][];
+                System.arraycopy(mStacks, 0, stacks, 0, mStacks.length);
+                mStacks = stacks;
+            }
+            for (int band = 0; band < bands; band++) {
+                int[][] stack = mStacks[band];
+                if (stack == null || stack.length < div) {
+                    mStacks[band] = new int[div][3];
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the stack for the given band, as sized by {@link #ensureStacks(int, int, int)}.
+     */
+    int[][] getStack(int band) {
+        return mStacks[band];
+    }
+
+    /**
+     * Returns the packed stack for the given band, as sized by
+     * {@link #ensureStacks(int, int, int)}. Entry {@code 2 * i} holds red and blue as
+     * 0x00RR00BB, entry {@code 2 * i + 1} green.
+     */
+    int[] getPackedStack(int band) {
+        return mPackedStacks[band];
+    }
+
+    /**
+     * Returns the reusable task for the given band.
+     */
+    BandTask getBandTask(int band) {
+        if (mBandTasks.length <= band) {
+            BandTask[] tasks = new BandTask[band + 1];
+            System.arraycopy(mBandTasks, 0, tasks, 0, mBandTasks.length);
+            mBandTasks = tasks;
+        }
+        BandTask task = mBandTasks[band];
+        if (task == null) {
+            task = new BandTask(this, band);
+            mBandTasks[band] = task;
+        }
+        return task;
+    }
+
+    /**
+     * Marks the start of a pass that hands {@code bands} bands to other threads.
+     */
+    synchronized void beginBands(int bands) {
+        mPendingBands = bands;
+    }
+
+    /**
+     * Called by a band task once it has finished.
+     */
+    synchronized void bandFinished() {
+        mPendingBands--;
+        if (mPendingBands == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until every band of the current pass has finished.
+     *
+     * The bands write straight into the shared planes, so we cannot leave until they
+     * are done, even if we get interrupted. The interrupt is restored for the caller.
+     */
+    synchronized void awaitBands() {
+        boolean interrupted = false;
+        while (mPendingBands > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A single row or column band of one blur pass. Instances belong to a
+     * workspace and are reused for every pass.
+     */
+    static class BandTask implements Runnable {
+        private final BlurWorkspace mWorkspace;
+        private final int mBand;
+        private int[] mPixels;
+        private int mOffset;
+        private int mStride;
+        private int mWidth;
+        private int mHeight;
+        private int mRadius;
+        private int mKernel;
+        private int[] mDv;
+        private int mStart;
+        private int mEnd;
+        private boolean mHorizontal;
+
+        BandTask(BlurWorkspace workspace, int band) {
+            mWorkspace = workspace;
+            mBand = band;
+        }
+
+        void set(int[] pixels, int offset, int stride, int w, int h, int radius, int kernel,
+                 int[] dv, int start, int end, boolean horizontal) {
+            mPixels = pixels;
+            mOffset = offset;
+            mStride = stride;
+            mWidth = w;
+            mHeight = h;
+            mRadius = radius;
+            mKernel = kernel;
+            mDv = dv;
+            mStart = start;
+            mEnd = end;
+            mHorizontal = horizontal;
+        }
+
+        /**
+         * Blurs the band a few rows or columns at a time, and returns early if the blur
+         * gets canceled. It never throws, so the band always counts as finished.
+         */
+        void blur() {
+            for (int start = mStart; start < mEnd; start += CANCEL_CHECK_INTERVAL) {
+                if (mWorkspace.isCanceled()) {
+                    return;
+                }
+                blur(start, Math.min(start + CANCEL_CHECK_INTERVAL, mEnd));
+            }
+        }
+
+        private void blur(int start, int end) {
+            if (mKernel == StackBlur.KERNEL_PACKED) {
+                int[] stack = mWorkspace.getPackedStack(mBand);
+                if (mHorizontal) {
+                    StackBlur.blurRowsPacked(mPixels, mOffset, mStride, mWorkspace, mWidth, mRadius,
+                            mDv, stack, start, end);
+                } else {
+                    StackBlur.blurColumnsPacked(mPixels, mOffset, mStride, mWorkspace, mWidth,
+                            mHeight, mRadius, mDv, stack, start, end);
+                }
+            } else {
+                int[][] stack = mWorkspace.getStack(mBand);
+                if (mHorizontal) {
+                    StackBlur.blurRows(mPixels, mOffset, mStride, mWorkspace, mWidth, mRadius, mDv,
+                            stack, start, end);
+                } else {
+                    StackBlur.blurColumns(mPixels, mOffset, mStride, mWorkspace, mWidth, mHeight,
+                            mRadius, mDv, stack, start, end);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                blur();
+            } finally {
+                mWorkspace.bandFinished();
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.android.fancyblurdemo.blurkernel;
+
+/**
+ * Gaussian approximation made of three successive box blurs over packed ARGB pixels.
+ *
+ * Every box pass keeps a running sum, so the cost per pixel does not depend on the
+ * radius, unlike {@link StackBlur} whose stack and division table grow with it. The
+ * boxes are sized so the result has the same spread as a stack blur of the same
+ * radius, which keeps the two algorithms interchangeable.
+ *
+ * Pixels are addressed as {@code pixels[offset + y * stride + x]} and the alpha
+ * channel is preserved.
+ */
+public final class BoxBlur {
+
+    /** Number of box passes in each direction. */
+    private static final int PASSES = 3;
+
+    /** Widest box whose packed sums still fit a 16 bit lane: 257 * 255 < 65536. */
+    static final int MAX_BOX_SIZE = 257;
+
+    private BoxBlur() {
+        // no instances
+    }
+
+    /**
+     * Blurs the given pixels in place on the calling thread.
+     *
+     * @param pixels Packed ARGB pixels
+     * @param offset Index of the top left pixel
+     * @param stride Distance between the starts of two rows
+     * @param width Width of the region to blur
+     * @param height Height of the region to blur
+     * @param radius Stack blur radius to match, at least 1
+     * @param workspace Scratch buffers to use; a canceled blur throws
+     *     {@link java.util.concurrent.CancellationException}
+     */
+    public static void blur(int[] pixels, int offset, int stride, int width, int height,
+                            int radius, BlurWorkspace workspace) {
+        if (radius < 1) {
+            throw new IllegalArgumentException("radius must be at least 1");
+        }
+
+        int w = width;
+        int h = height;
+        workspace.ensureBoxCapacity(w, h);
+        int[] sizes = workspace.getBoxSizes(radius);
+        int[] a = workspace.rgb;
+        int[] b = workspace.rgb2;
+
+        // All horizontal passes first, then all vertical ones. The first pass reads the
+        // caller's pixels and the last one writes them back; in between we ping-pong
+        // between the two packed planes.
+        boxRows(pixels, offset, stride, a, 0, w, w, h, sizes[0], workspace);
+        boxRows(a, 0, w, b, 0, w, w, h, sizes[1], workspace);
+        boxRows(b, 0, w, a, 0, w, w, h, sizes[2], workspace);
+        boxColumns(a, 0, w, b, 0, w, w, h, sizes[0], workspace, false);
+        boxColumns(b, 0, w, a, 0, w, w, h, sizes[1], workspace, false);
+        boxColumns(a, 0, w, pixels, offset, stride, w, h, sizes[2], workspace, true);
+    }
+
+    /**
+     * Computes the widths of {@link #PASSES} boxes that together approximate a gaussian
+     * with the same variance as a stack blur of the given radius.
+     *
+     * A stack blur is a triangle filter, whose variance is {@code radius * (radius + 2) / 6}.
+     * The box widths follow "Fastest Gaussian Blur" by Ivan Kuckir. Radii beyond about
+     * 300 are capped at {@link #MAX_BOX_SIZE}.
+     */
+    static int[] computeBoxSizes(int radius) {
+        double variance = radius * (radius + 2) / 6.0;
+        int n = PASSES;
+        double wIdeal = Math.sqrt(12 * variance / n + 1);
+        int wl = (int) Math.floor(wIdeal);
+        if (wl % 2 == 0) {
+            wl--;
+        }
+        int wu = wl + 2;
+        double mIdeal = (12 * variance - n * wl * wl - 4 * n * wl - 3 * n) / (-4.0 * wl - 4);
+        long m = Math.round(mIdeal);
+
+        int[] sizes = new int[n];
+        for (int i = 0; i < n; i++) {
+            sizes[i] = Math.min(i < m ? wl : wu, MAX_BOX_SIZE);
+        }
+        return sizes;
+    }
+
+    /**
+     * One horizontal box pass of width {@code size} with clamped edges. The destination
+     * receives 0x00RRGGBB.
+     *
+     * Red and blue are summed together in two 16 bit lanes of one int, like the packed
+     * stack blur kernel does; {@link #MAX_BOX_SIZE} keeps the lanes from overflowing.
+     */
+    private static void boxRows(int[] src, int srcOffset, int srcStride, int[] dst, int dstOffset,
+                                int dstStride, int w, int h, int size, BlurWorkspace workspace) {
+        int br = size >> 1;
+        int wm = w - 1;
+        int[] dv = workspace.getBoxDivTable(size);
+        int rbsum, gsum, x, y, i, p, q, si, di;
+
+        for (y = 0; y < h; y++) {
+            if (y % BlurWorkspace.CANCEL_CHECK_INTERVAL == 0) {
+                workspace.throwIfCanceled();
+            }
+            si = srcOffset + y * srcStride;
+            di = dstOffset + y * dstStride;
+            rbsum = gsum = 0;
+            for (i = -br; i <= br; i++) {
+                p = src[si + Math.min(wm, Math.max(i, 0))];
+                rbsum += p & 0x00ff00ff;
+                gsum += (p >> 8) & 0xff;
+            }
+            for (x = 0; x < w; x++) {
+                dst[di + x] = (dv[rbsum >>> 16] << 16) | (dv[gsum] << 8) | dv[rbsum & 0xffff];
+
+                p = src[si + Math.min(x + br + 1, wm)];
+                q = src[si + Math.max(x - br, 0)];
+                rbsum += (p & 0x00ff00ff) - (q & 0x00ff00ff);
+                gsum += ((p >> 8) & 0xff) - ((q >> 8) & 0xff);
+            }
+        }
+    }
+
+    /**
+     * One vertical box pass of width {@code size} with clamped edges. When
+     * {@code keepAlpha} is set the alpha of the destination pixel is preserved,
+     * otherwise the destination receives 0x00RRGGBB.
+     *
+     * Walking down each column would stride through memory, so this keeps one running
+     * sum per column and moves all of them down a row at a time instead. The sums are
+     * packed like those of {@link #boxRows}.
+     */
+    private static void boxColumns(int[] src, int srcOffset, int srcStride, int[] dst,
+                                   int dstOffset, int dstStride, int w, int h, int size,
+                                   BlurWorkspace workspace, boolean keepAlpha) {
+        int br = size >> 1;
+        int hm = h - 1;
+        int[] dv = workspace.getBoxDivTable(size);
+        int[] sums = workspace.boxSums;
+        int x, y, i, p, q, rb, si, ai, di, s2;
+        int alphaMask = keepAlpha ? 0xff000000 : 0;
+
+        for (x = 0, s2 = 0; x < w; x++, s2 += 2) {
+            sums[s2] = sums[s2 + 1] = 0;
+        }
+        for (i = -br; i <= br; i++) {
+            si = srcOffset + Math.min(hm, Math.max(i, 0)) * srcStride;
+            for (x = 0, s2 = 0; x < w; x++, s2 += 2) {
+                p = src[si + x];
+                sums[s2] += p & 0x00ff00ff;
+                sums[s2 + 1] += (p >> 8) & 0xff;
+            }
+        }
+        for (y = 0; y < h; y++) {
+            if (y % BlurWorkspace.CANCEL_CHECK_INTERVAL == 0) {
+                workspace.throwIfCanceled();
+            }
+            di = dstOffset + y * dstStride;
+            ai = srcOffset + Math.min(y + br + 1, hm) * srcStride;
+            si = srcOffset + Math.max(y - br, 0) * srcStride;
+            for (x = 0, s2 = 0; x < w; x++, s2 += 2) {
+                rb = sums[s2];
+                dst[di + x] = (alphaMask & dst[di + x])
+                        | (dv[rb >>> 16] << 16) | (dv[sums[s2 + 1]] << 8) | dv[rb & 0xffff];
+
+                p = src[ai + x];
+                q = src[si + x];
+                sums[s2] = rb + (p & 0x00ff00ff) - (q & 0x00ff00ff);
+                sums[s2 + 1] += ((p >> 8) & 0xff) - ((q >> 8) & 0xff);
+            }
+        }
+    }
+}
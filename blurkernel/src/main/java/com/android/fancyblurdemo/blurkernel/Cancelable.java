@@ -0,0 +1,17 @@
+package com.android.fancyblurdemo.blurkernel;
+
+/**
+ * Something that can be canceled while it is being blurred.
+ *
+ * A blur polls the cancelable of its {@link BlurWorkspace} every few rows or columns
+ * and stops with a {@link java.util.concurrent.CancellationException} once it reports
+ * true. {@link #isCanceled()} is called from the blurring threads, so implementations
+ * must make the flag visible across threads.
+ */
+public interface Cancelable {
+
+    /**
+     * Returns true once the blur is no longer wanted.
+     */
+    boolean isCanceled();
+}
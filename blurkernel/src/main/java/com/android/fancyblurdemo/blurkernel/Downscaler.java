@@ -0,0 +1,70 @@
+package com.android.fancyblurdemo.blurkernel;
+
+/**
+ * Box filter downscaling of packed ARGB pixels.
+ *
+ * Every destination pixel is the average of the source pixels it covers, which is
+ * the right filter ahead of a blur: nothing is skipped, so the blur does not pick
+ * up aliasing from the source.
+ */
+public final class Downscaler {
+
+    private Downscaler() {
+        // no instances
+    }
+
+    /**
+     * Downscales the crop described by {@code geometry} into {@code dst}.
+     *
+     * @param src Source pixels
+     * @param srcOffset Index of the top left source image pixel
+     * @param srcStride Distance between the starts of two source rows
+     * @param geometry The crop and output size; the crop must lie inside the source
+     * @param dst Destination pixels
+     * @param dstOffset Index of the top left destination pixel
+     * @param dstStride Distance between the starts of two destination rows
+     */
+    public static void downscale(int[] src, int srcOffset, int srcStride, BlurGeometry geometry,
+                                 int[] dst, int dstOffset, int dstStride) {
+        downscale(src, srcOffset + geometry.srcTop * srcStride + geometry.srcLeft, srcStride,
+                geometry.srcWidth, geometry.srcHeight,
+                dst, dstOffset, dstStride, geometry.dstWidth, geometry.dstHeight);
+    }
+
+    /**
+     * Downscales a {@code srcWidth} x {@code srcHeight} region into a
+     * {@code dstWidth} x {@code dstHeight} region. The destination must not be larger
+     * than the source in either direction.
+     */
+    public static void downscale(int[] src, int srcOffset, int srcStride, int srcWidth, int srcHeight,
+                                 int[] dst, int dstOffset, int dstStride, int dstWidth, int dstHeight) {
+        if (dstWidth > srcWidth || dstHeight > srcHeight) {
+            throw new IllegalArgumentException("Downscaler cannot enlarge an image");
+        }
+        int y0 = 0;
+        for (int dy = 0; dy < dstHeight; dy++) {
+            int y1 = (int) ((long) (dy + 1) * srcHeight / dstHeight);
+            int x0 = 0;
+            int di = dstOffset + dy * dstStride;
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int x1 = (int) ((long) (dx + 1) * srcWidth / dstWidth);
+                int a = 0, r = 0, g = 0, b = 0;
+                int si = srcOffset + y0 * srcStride;
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        int p = src[si + x];
+                        a += p >>> 24;
+                        r += (p >> 16) & 0xff;
+                        g += (p >> 8) & 0xff;
+                        b += p & 0xff;
+                    }
+                    si += srcStride;
+                }
+                int count = (y1 - y0) * (x1 - x0);
+                dst[di++] = ((a / count) << 24) | ((r / count) << 16) | ((g / count) << 8) | (b / count);
+                x0 = x1;
+            }
+            y0 = y1;
+        }
+    }
+}
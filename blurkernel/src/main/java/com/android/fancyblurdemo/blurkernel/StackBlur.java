@@ -0,0 +1,528 @@
+package com.android.fancyblurdemo.blurkernel;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Stack blur over packed ARGB pixels.
+ *
+ * The pixels are addressed as {@code pixels[offset + y * stride + x]}, so a blur can
+ * run over a sub-rectangle of a larger buffer. The alpha channel is preserved.
+ *
+ * Stack Blur v1.0 from
+ * http://www.quasimondo.com/StackBlurForCanvas/StackBlurDemo.html
+ *
+ * Java Author: Mario Klingemann <mario at quasimondo.com>
+ * http://incubator.quasimondo.com
+ * created Feburary 29, 2004
+ * Android port : Yahel Bouaziz <yahel at kayenko.com>
+ * http://www.kayenko.com
+ * ported april 5th, 2012
+ *
+ * Stack Blur Algorithm by Mario Klingemann <mario@quasimondo.com>
+ */
+public final class StackBlur {
+
+    /** The original three-plane kernel. */
+    public static final int KERNEL_REFERENCE = 0;
+
+    /**
+     * Packed kernel. Red and blue share one accumulator as two 16 bit lanes, and the
+     * horizontal pass writes a single 0x00RRGGBB plane instead of three. Its output is
+     * identical to {@link #KERNEL_REFERENCE}.
+     */
+    public static final int KERNEL_PACKED = 1;
+
+    /**
+     * Largest radius the packed kernel supports. The weighted sum of a channel can reach
+     * {@code 255 * (radius + 1)^2}, which has to fit in a 16 bit lane. Larger radii fall
+     * back to the reference kernel.
+     */
+    public static final int PACKED_MAX_RADIUS = 15;
+
+    private StackBlur() {
+        // no instances
+    }
+
+    /**
+     * Blurs the given pixels in place on the calling thread.
+     *
+     * @param pixels Packed ARGB pixels
+     * @param offset Index of the top left pixel
+     * @param stride Distance between the starts of two rows
+     * @param width Width of the region to blur
+     * @param height Height of the region to blur
+     * @param radius Blur radius, at least 1
+     * @param workspace Scratch buffers to use
+     */
+    public static void blur(int[] pixels, int offset, int stride, int width, int height,
+                            int radius, BlurWorkspace workspace) {
+        blur(pixels, offset, stride, width, height, radius, KERNEL_REFERENCE, workspace, null, 1);
+    }
+
+    /**
+     * Blurs the given pixels in place, splitting each pass into {@code bands} bands.
+     * All but the last band are handed to {@code executor} while the calling thread
+     * blurs the last one. The result is identical to a serial blur.
+     *
+     * If the workspace's {@link Cancelable} reports true the blur stops within
+     * {@link BlurWorkspace#CANCEL_CHECK_INTERVAL} rows or columns of every band and
+     * throws {@link java.util.concurrent.CancellationException}.
+     *
+     * @param pixels Packed ARGB pixels
+     * @param offset Index of the top left pixel
+     * @param stride Distance between the starts of two rows
+     * @param width Width of the region to blur
+     * @param height Height of the region to blur
+     * @param radius Blur radius, at least 1
+     * @param kernel Either {@link #KERNEL_REFERENCE} or {@link #KERNEL_PACKED}
+     * @param workspace Scratch buffers to use
+     * @param executor Runs the extra bands, may be null if {@code bands} is 1
+     * @param bands Number of bands to split each pass into
+     */
+    public static void blur(int[] pixels, int offset, int stride, int width, int height,
+                            int radius, int kernel, BlurWorkspace workspace, Executor executor,
+                            int bands) {
+        if (radius < 1) {
+            throw new IllegalArgumentException("radius must be at least 1");
+        }
+        if (kernel == KERNEL_PACKED && radius > PACKED_MAX_RADIUS) {
+            kernel = KERNEL_REFERENCE;
+        }
+
+        int w = width;
+        int h = height;
+        int wm = w - 1;
+        int hm = h - 1;
+        int div = radius + radius + 1;
+        int x, y;
+
+        workspace.ensureCapacity(w, h, kernel);
+        int[] dv = workspace.getDivTable(radius);
+
+        // The edge lookups only depend on the dimensions, so they are computed once
+        // up front instead of on the first row/column. This lets every band share them.
+        int[] vminX = workspace.vminX;
+        for (x = 0; x < w; x++) {
+            vminX[x] = Math.min(x + radius + 1, wm);
+        }
+        int[] vminY = workspace.vminY;
+        for (y = 0; y < h; y++) {
+            vminY[y] = Math.min(y + radius + 1, hm) * w;
+        }
+
+        bands = Math.max(1, Math.min(bands, Math.min(w, h)));
+        if (executor == null) {
+            bands = 1;
+        }
+        workspace.ensureStacks(bands, div, kernel);
+        if (bands == 1) {
+            // A serial blur is a single band run on this thread, which gives it the same
+            // cancellation checks as a parallel one.
+            BlurWorkspace.BandTask task = workspace.getBandTask(0);
+            task.set(pixels, offset, stride, w, h, radius, kernel, dv, 0, h, true);
+            task.blur();
+            workspace.throwIfCanceled();
+            task.set(pixels, offset, stride, w, h, radius, kernel, dv, 0, w, false);
+            task.blur();
+            workspace.throwIfCanceled();
+        } else {
+            // Rows are independent in the horizontal pass and columns are independent in
+            // the vertical pass, so each band only needs its own stack. The passes are
+            // separated by a barrier since the columns read every row's output.
+            runBands(pixels, offset, stride, workspace, w, h, radius, kernel, dv, executor, bands, true);
+            runBands(pixels, offset, stride, workspace, w, h, radius, kernel, dv, executor, bands, false);
+        }
+    }
+
+    /**
+     * Runs the horizontal pass over rows {@code [yStart, yEnd)}, writing each channel
+     * into the workspace planes.
+     */
+    static void blurRows(int[] pix, int offset, int stride, BlurWorkspace workspace, int w,
+                         int radius, int[] dv, int[][] stack, int yStart, int yEnd) {
+        int[] r = workspace.r;
+        int[] g = workspace.g;
+        int[] b = workspace.b;
+        int[] vminX = workspace.vminX;
+        int wm = w - 1;
+        int div = radius + radius + 1;
+        int rsum, gsum, bsum, x, y, i, p, yi, yw;
+        int stackpointer;
+        int stackstart;
+        int[] sir;
+        int rbs;
+        int r1 = radius + 1;
+        int routsum, goutsum, boutsum;
+        int rinsum, ginsum, binsum;
+
+        yi = yStart * w;
+        yw = offset + yStart * stride;
+
+        for (y = yStart; y < yEnd; y++) {
+            rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
+            for (i = -radius; i <= radius; i++) {
+                p = pix[yw + Math.min(wm, Math.max(i, 0))];
+                sir = stack[i + radius];
+                sir[0] = (p & 0xff0000) >> 16;
+                sir[1] = (p & 0x00ff00) >> 8;
+                sir[2] = (p & 0x0000ff);
+                rbs = r1 - Math.abs(i);
+                rsum += sir[0] * rbs;
+                gsum += sir[1] * rbs;
+                bsum += sir[2] * rbs;
+                if (i > 0) {
+                    rinsum += sir[0];
+                    ginsum += sir[1];
+                    binsum += sir[2];
+                } else {
+                    routsum += sir[0];
+                    goutsum += sir[1];
+                    boutsum += sir[2];
+                }
+            }
+            stackpointer = radius;
+
+            for (x = 0; x < w; x++) {
+
+                r[yi] = dv[rsum];
+                g[yi] = dv[gsum];
+                b[yi] = dv[bsum];
+
+                rsum -= routsum;
+                gsum -= goutsum;
+                bsum -= boutsum;
+
+                stackstart = stackpointer - radius + div;
+                sir = stack[stackstart % div];
+
+                routsum -= sir[0];
+                goutsum -= sir[1];
+                boutsum -= sir[2];
+
+                p = pix[yw + vminX[x]];
+
+                sir[0] = (p & 0xff0000) >> 16;
+                sir[1] = (p & 0x00ff00) >> 8;
+                sir[2] = (p & 0x0000ff);
+
+                rinsum += sir[0];
+                ginsum += sir[1];
+                binsum += sir[2];
+
+                rsum += rinsum;
+                gsum += ginsum;
+                bsum += binsum;
+
+                stackpointer = (stackpointer + 1) % div;
+                sir = stack[(stackpointer) % div];
+
+                routsum += sir[0];
+                goutsum += sir[1];
+                boutsum += sir[2];
+
+                rinsum -= sir[0];
+                ginsum -= sir[1];
+                binsum -= sir[2];
+
+                yi++;
+            }
+            yw += stride;
+        }
+    }
+
+    /**
+     * Runs the vertical pass over columns {@code [xStart, xEnd)}, reading the workspace
+     * planes and writing the blurred pixels back.
+     */
+    static void blurColumns(int[] pix, int offset, int stride, BlurWorkspace workspace, int w,
+                            int h, int radius, int[] dv, int[][] stack, int xStart, int xEnd) {
+        int[] r = workspace.r;
+        int[] g = workspace.g;
+        int[] b = workspace.b;
+        int[] vminY = workspace.vminY;
+        int hm = h - 1;
+        int div = radius + radius + 1;
+        int rsum, gsum, bsum, x, y, i, p, yp, yi, po;
+        int stackpointer;
+        int stackstart;
+        int[] sir;
+        int rbs;
+        int r1 = radius + 1;
+        int routsum, goutsum, boutsum;
+        int rinsum, ginsum, binsum;
+
+        for (x = xStart; x < xEnd; x++) {
+            rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
+            yp = -radius * w;
+            for (i = -radius; i <= radius; i++) {
+                yi = Math.max(0, yp) + x;
+
+                sir = stack[i + radius];
+
+                sir[0] = r[yi];
+                sir[1] = g[yi];
+                sir[2] = b[yi];
+
+                rbs = r1 - Math.abs(i);
+
+                rsum += r[yi] * rbs;
+                gsum += g[yi] * rbs;
+                bsum += b[yi] * rbs;
+
+                if (i > 0) {
+                    rinsum += sir[0];
+                    ginsum += sir[1];
+                    binsum += sir[2];
+                } else {
+                    routsum += sir[0];
+                    goutsum += sir[1];
+                    boutsum += sir[2];
+                }
+
+                if (i < hm) {
+                    yp += w;
+                }
+            }
+            po = offset + x;
+            stackpointer = radius;
+            for (y = 0; y < h; y++) {
+                // Preserve alpha channel: ( 0xff000000 & pix[po] )
+                pix[po] = ( 0xff000000 & pix[po] ) | ( dv[rsum] << 16 ) | ( dv[gsum] << 8 ) | dv[bsum];
+
+                rsum -= routsum;
+                gsum -= goutsum;
+                bsum -= boutsum;
+
+                stackstart = stackpointer - radius + div;
+                sir = stack[stackstart % div];
+
+                routsum -= sir[0];
+                goutsum -= sir[1];
+                boutsum -= sir[2];
+
+                p = x + vminY[y];
+
+                sir[0] = r[p];
+                sir[1] = g[p];
+                sir[2] = b[p];
+
+                rinsum += sir[0];
+                ginsum += sir[1];
+                binsum += sir[2];
+
+                rsum += rinsum;
+                gsum += ginsum;
+                bsum += binsum;
+
+                stackpointer = (stackpointer + 1) % div;
+                sir = stack[stackpointer];
+
+                routsum += sir[0];
+                goutsum += sir[1];
+                boutsum += sir[2];
+
+                rinsum -= sir[0];
+                ginsum -= sir[1];
+                binsum -= sir[2];
+
+                po += stride;
+            }
+        }
+    }
+
+    /**
+     * Packed version of {@link #blurRows}. Red and blue travel together as 0x00RR00BB,
+     * and each output pixel is written to the packed plane as 0x00RRGGBB.
+     */
+    static void blurRowsPacked(int[] pix, int offset, int stride, BlurWorkspace workspace, int w,
+                               int radius, int[] dv, int[] stack, int yStart, int yEnd) {
+        int[] rgb = workspace.rgb;
+        int[] vminX = workspace.vminX;
+        int wm = w - 1;
+        int div = radius + radius + 1;
+        int rbsum, gsum, x, y, i, p, prb, pg, yi, yw, si;
+        int stackpointer;
+        int rbs;
+        int r1 = radius + 1;
+        int rboutsum, goutsum;
+        int rbinsum, ginsum;
+
+        yi = yStart * w;
+        yw = offset + yStart * stride;
+
+        for (y = yStart; y < yEnd; y++) {
+            rbinsum = ginsum = rboutsum = goutsum = rbsum = gsum = 0;
+            for (i = -radius; i <= radius; i++) {
+                p = pix[yw + Math.min(wm, Math.max(i, 0))];
+                prb = p & 0xff00ff;
+                pg = (p >> 8) & 0xff;
+                si = (i + radius) << 1;
+                stack[si] = prb;
+                stack[si + 1] = pg;
+                rbs = r1 - Math.abs(i);
+                rbsum += prb * rbs;
+                gsum += pg * rbs;
+                if (i > 0) {
+                    rbinsum += prb;
+                    ginsum += pg;
+                } else {
+                    rboutsum += prb;
+                    goutsum += pg;
+                }
+            }
+            stackpointer = radius;
+
+            for (x = 0; x < w; x++) {
+
+                rgb[yi] = (dv[rbsum >>> 16] << 16) | (dv[gsum] << 8) | dv[rbsum & 0xffff];
+
+                rbsum -= rboutsum;
+                gsum -= goutsum;
+
+                si = ((stackpointer - radius + div) % div) << 1;
+
+                rboutsum -= stack[si];
+                goutsum -= stack[si + 1];
+
+                p = pix[yw + vminX[x]];
+                prb = p & 0xff00ff;
+                pg = (p >> 8) & 0xff;
+
+                stack[si] = prb;
+                stack[si + 1] = pg;
+
+                rbinsum += prb;
+                ginsum += pg;
+
+                rbsum += rbinsum;
+                gsum += ginsum;
+
+                stackpointer = (stackpointer + 1) % div;
+                si = stackpointer << 1;
+
+                rboutsum += stack[si];
+                goutsum += stack[si + 1];
+
+                rbinsum -= stack[si];
+                ginsum -= stack[si + 1];
+
+                yi++;
+            }
+            yw += stride;
+        }
+    }
+
+    /**
+     * Packed version of {@link #blurColumns}, reading the packed plane.
+     */
+    static void blurColumnsPacked(int[] pix, int offset, int stride, BlurWorkspace workspace,
+                                  int w, int h, int radius, int[] dv, int[] stack, int xStart,
+                                  int xEnd) {
+        int[] rgb = workspace.rgb;
+        int[] vminY = workspace.vminY;
+        int hm = h - 1;
+        int div = radius + radius + 1;
+        int rbsum, gsum, x, y, i, v, prb, pg, yp, yi, po, si;
+        int stackpointer;
+        int rbs;
+        int r1 = radius + 1;
+        int rboutsum, goutsum;
+        int rbinsum, ginsum;
+
+        for (x = xStart; x < xEnd; x++) {
+            rbinsum = ginsum = rboutsum = goutsum = rbsum = gsum = 0;
+            yp = -radius * w;
+            for (i = -radius; i <= radius; i++) {
+                yi = Math.max(0, yp) + x;
+
+                v = rgb[yi];
+                prb = v & 0xff00ff;
+                pg = (v >> 8) & 0xff;
+                si = (i + radius) << 1;
+                stack[si] = prb;
+                stack[si + 1] = pg;
+
+                rbs = r1 - Math.abs(i);
+
+                rbsum += prb * rbs;
+                gsum += pg * rbs;
+
+                if (i > 0) {
+                    rbinsum += prb;
+                    ginsum += pg;
+                } else {
+                    rboutsum += prb;
+                    goutsum += pg;
+                }
+
+                if (i < hm) {
+                    yp += w;
+                }
+            }
+            po = offset + x;
+            stackpointer = radius;
+            for (y = 0; y < h; y++) {
+                // Preserve alpha channel: ( 0xff000000 & pix[po] )
+                pix[po] = (0xff000000 & pix[po]) | (dv[rbsum >>> 16] << 16) | (dv[gsum] << 8) | dv[rbsum & 0xffff];
+
+                rbsum -= rboutsum;
+                gsum -= goutsum;
+
+                si = ((stackpointer - radius + div) % div) << 1;
+
+                rboutsum -= stack[si];
+                goutsum -= stack[si + 1];
+
+                v = rgb[x + vminY[y]];
+                prb = v & 0xff00ff;
+                pg = (v >> 8) & 0xff;
+
+                stack[si] = prb;
+                stack[si + 1] = pg;
+
+                rbinsum += prb;
+                ginsum += pg;
+
+                rbsum += rbinsum;
+                gsum += ginsum;
+
+                stackpointer = (stackpointer + 1) % div;
+                si = stackpointer << 1;
+
+                rboutsum += stack[si];
+                goutsum += stack[si + 1];
+
+                rbinsum -= stack[si];
+                ginsum -= stack[si + 1];
+
+                po += stride;
+            }
+        }
+    }
+
+    /**
+     * Splits one pass into {@code bands} contiguous bands and waits for all of them.
+     * Canceled bands stop early; the cancellation is only thrown once every band has
+     * stopped writing to the workspace.
+     */
+    private static void runBands(int[] pixels, int offset, int stride, BlurWorkspace workspace,
+                                 int w, int h, int radius, int kernel, int[] dv, Executor executor,
+                                 int bands, boolean horizontal) {
+        int extent = horizontal ? h : w;
+
+        workspace.beginBands(bands - 1);
+        for (int band = 0; band < bands; band++) {
+            int start = extent * band / bands;
+            int end = extent * (band + 1) / bands;
+            BlurWorkspace.BandTask task = workspace.getBandTask(band);
+            task.set(pixels, offset, stride, w, h, radius, kernel, dv, start, end, horizontal);
+            if (band < bands - 1) {
+                executor.execute(task);
+            } else {
+                task.blur();
+            }
+        }
+        workspace.awaitBands();
+        workspace.throwIfCanceled();
+    }
+}
@@ -0,0 +1,129 @@
+package com.android.fancyblurdemo.cachepolicy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recorded sequence of image cache lookups and puts, for replaying against cache policies.
+ *
+ * Written one event per line: {@code g <key>} for a lookup and {@code p <bytes> <key>} for a
+ * put. A lookup that misses is normally followed by a put of the same key once the image has
+ * been loaded; the puts give the size of each image.
+ */
+public final class AccessTrace {
+
+    /** A lookup. */
+    public static final int GET = 0;
+
+    /** A put. */
+    public static final int PUT = 1;
+
+    private final int mMaxEvents;
+    private final List<String> mKeys = new ArrayList<String>();
+    private final List<Integer> mSizes = new ArrayList<Integer>();
+    private final List<Integer> mTypes = new ArrayList<Integer>();
+
+    /**
+     * @param maxEvents Events kept; once there are this many, further events are ignored.
+     */
+    public AccessTrace(int maxEvents) {
+        mMaxEvents = maxEvents;
+    }
+
+    public AccessTrace() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Records a lookup.
+     */
+    public synchronized void recordGet(String key) {
+        record(GET, key, 0);
+    }
+
+    /**
+     * Records a put.
+     * @param size The size of the value, in bytes.
+     */
+    public synchronized void recordPut(String key, int size) {
+        record(PUT, key, size);
+    }
+
+    private void record(int type, String key, int size) {
+        if (mKeys.size() >= mMaxEvents) {
+            return;
+        }
+        mTypes.add(type);
+        mKeys.add(key);
+        mSizes.add(size);
+    }
+
+    public synchronized int size() {
+        return mKeys.size();
+    }
+
+    /** Returns {@link #GET} or {@link #PUT}. */
+    public synchronized int getType(int index) {
+        return mTypes.get(index);
+    }
+
+    public synchronized String getKey(int index) {
+        return mKeys.get(index);
+    }
+
+    /** Returns the size of a put, in bytes, or 0 for a lookup. */
+    public synchronized int getSize(int index) {
+        return mSizes.get(index);
+    }
+
+    /**
+     * Writes the trace in its text format.
+     */
+    public synchronized void writeTo(Writer writer) throws IOException {
+        for (int i = 0; i < mKeys.size(); i++) {
+            if (mTypes.get(i) == GET) {
+                writer.write("g " + mKeys.get(i) + "\n");
+            } else {
+                writer.write("p " + mSizes.get(i) + " " + mKeys.get(i) + "\n");
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Reads a trace written by {@link #writeTo(Writer)}.
+     * @throws IOException If the reader fails or a line is not an event.
+     */
+    public static AccessTrace read(Reader reader) throws IOException {
+        AccessTrace trace = new AccessTrace();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            if (line.length() == 0) {
+                continue;
+            }
+            try {
+                if (line.startsWith("g ")) {
+                    trace.recordGet(line.substring(2));
+                    continue;
+                } else if (line.startsWith("p ")) {
+                    int space = line.indexOf(' ', 2);
+                    if (space > 2) {
+                        trace.recordPut(line.substring(space + 1), Integer.parseInt(line.substring(2, space)));
+                        continue;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Reported below.
+            }
+            throw new IOException("Not a trace event on line " + lineNumber + ": " + line);
+        }
+        return trace;
+    }
+}
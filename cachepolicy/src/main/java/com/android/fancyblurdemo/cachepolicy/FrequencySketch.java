@@ -0,0 +1,100 @@
+package com.android.fancyblurdemo.cachepolicy;
+
+/**
+ * Estimates how often each key has been seen recently, in a fixed amount of memory.
+ *
+ * A count-min sketch: every key is counted in one slot of each of four rows, chosen by a
+ * different hash per row, and its estimate is the smallest of its four counts. Collisions
+ * can only make an estimate too high, never too low. Counts stop at 15, which is enough to
+ * tell a hot image from one seen once. After ten times as many increments as a row has
+ * slots, every count is halved, so the sketch forgets what was popular a while ago.
+ */
+public final class FrequencySketch {
+
+    /** Largest count a slot holds. */
+    public static final int MAX_COUNT = 15;
+
+    /** One seed per row, to derive four independent slots from one hash. */
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    /** Increments between two halvings, per slot in a row. */
+    private static final int SAMPLE_FACTOR = 10;
+
+    private final byte[][] mRows;
+    private final int mMask;
+    private final int mSampleSize;
+    private int mAdditions = 0;
+
+    /**
+     * @param expectedKeys About how many distinct keys are in use at once.
+     */
+    public FrequencySketch(int expectedKeys) {
+        int width = 16;
+        while (width < expectedKeys && width < (1 << 24)) {
+            width <<= 1;
+        }
+        mRows = new byte[SEEDS.length][width];
+        mMask = width - 1;
+        mSampleSize = width * SAMPLE_FACTOR;
+    }
+
+    /**
+     * Counts one occurrence of a key.
+     */
+    public void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < mRows.length; row++) {
+            int index = indexOf(hash, row);
+            if (mRows[row][index] < MAX_COUNT) {
+                mRows[row][index]++;
+                added = true;
+            }
+        }
+        if (added && ++mAdditions >= mSampleSize) {
+            halve();
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent occurrences of a key, at most {@link #MAX_COUNT}.
+     */
+    public int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < mRows.length; row++) {
+            frequency = Math.min(frequency, mRows[row][indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * Halves every count.
+     */
+    private void halve() {
+        for (byte[] row : mRows) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (row[i] >> 1);
+            }
+        }
+        mAdditions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & mMask;
+    }
+
+    /**
+     * Mixes the bits of a hash code, since String hashes of similar URLs differ little.
+     */
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,501 @@
+package com.android.fancyblurdemo.cachepolicy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A cache that admits new entries only if they are likely to be used again, so a single
+ * pass over many entries cannot flush the entries in regular use.
+ *
+ * Entries are sized like in {@code LruCache}, by {@link #sizeOf(Object, Object)}, and the
+ * cache holds at most {@code maxSize} of them. The space is split three ways:
+ * <ul>
+ * <li>a small window, an LRU that every new entry goes into first, so a burst of
+ * requests for a new entry is served while it builds up a history;</li>
+ * <li>probation, an LRU of entries admitted from the window that have not been used since;</li>
+ * <li>protected, an LRU of entries used again while on probation, which is most of the space.</li>
+ * </ul>
+ * When the window overflows, its oldest entry is a candidate for probation. It is admitted
+ * only if a {@link FrequencySketch} of recent requests says it was asked for more often
+ * than the entries it would evict; otherwise it is the one evicted. A scan of one-off
+ * entries therefore only ever churns the window.
+ *
+ * This is the W-TinyLFU policy. Unlike the original, entries have sizes, so a candidate may
+ * have to win against several victims to be admitted.
+ *
+ * How big the window should be depends on the requests: a user paging back and forth over
+ * neighbouring images wants mostly recency, a mix of favourites and scans wants mostly
+ * frequency. With an adaptive window the cache keeps moving the split by a step in the
+ * direction that last raised its hit rate, and turns round when the hit rate falls, with
+ * the step shrinking slowly as it settles.
+ *
+ * Thread safe; every method locks the cache, and {@link #entryRemoved} is called without
+ * the lock held, as in {@code LruCache}.
+ */
+public class TinyLfuCache<K, V> {
+
+    /** Default share of the space, in percent, for the window. */
+    public static final int DEFAULT_WINDOW_PERCENT = 10;
+
+    /** Share of the space after the window, in percent, for protected entries. */
+    private static final int PROTECTED_PERCENT = 80;
+
+    /** Lookups per hit rate sample, per expected entry, for the adaptive window. */
+    private static final int SAMPLE_LOOKUPS_PER_ENTRY = 40;
+
+    /** Fewest lookups per hit rate sample. */
+    private static final int MIN_SAMPLE_LOOKUPS = 256;
+
+    /**
+     * First step of the adaptive window, and smallest step, as fractions of the space. The
+     * first step is large because a bitmap cache only holds a handful of images: a step
+     * smaller than an image hardly changes what the window holds, so the hit rate samples
+     * only see noise and the climb wanders instead of finding the right split.
+     */
+    private static final int INITIAL_STEP_DIVISOR = 4;
+    private static final int MIN_STEP_DIVISOR = 64;
+
+    /** How much the step shrinks after each sample, in percent. */
+    private static final int STEP_DECAY_PERCENT = 98;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final class Node<K, V> {
+        final K key;
+        V value;
+        int size;
+        int segment;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /** A least recently used first list of nodes. */
+    private static final class Segment<K, V> {
+        /** The least recently used node. */
+        Node<K, V> head;
+        /** The most recently used node. */
+        Node<K, V> tail;
+        int size;
+
+        void addLast(Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            size += node.size;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            size -= node.size;
+        }
+    }
+
+    /** An entry removed under the lock, reported after it is released. */
+    private static final class Removal<K, V> {
+        final boolean evicted;
+        final K key;
+        final V oldValue;
+        final V newValue;
+
+        Removal(boolean evicted, K key, V oldValue, V newValue) {
+            this.evicted = evicted;
+            this.key = key;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+    }
+
+    private final HashMap<K, Node<K, V>> mMap = new HashMap<K, Node<K, V>>();
+    private final Segment<K, V> mWindow = new Segment<K, V>();
+    private final Segment<K, V> mProbation = new Segment<K, V>();
+    private final Segment<K, V> mProtected = new Segment<K, V>();
+    private final FrequencySketch mSketch;
+
+    private final int mMaxSize;
+    private int mWindowMaxSize;
+    private int mProtectedMaxSize;
+
+    /** Whether the window size adapts to the hit rate, and the state of the hill climb. */
+    private final boolean mAdaptive;
+    private final int mSampleLookups;
+    private int mSampleHits;
+    private int mSampleMisses;
+    private double mPreviousHitRate = -1;
+    private int mStep;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+    private int mRejectionCount;
+
+    /**
+     * Creates a cache with an adaptive window.
+     * @param maxSize The most the entries may add up to, in the units of {@link #sizeOf}.
+     * @param expectedEntries About how many entries fit; sizes the frequency sketch.
+     */
+    public TinyLfuCache(int maxSize, int expectedEntries) {
+        this(maxSize, expectedEntries, DEFAULT_WINDOW_PERCENT, true);
+    }
+
+    /**
+     * @param maxSize The most the entries may add up to, in the units of {@link #sizeOf}.
+     * @param expectedEntries About how many entries fit; sizes the frequency sketch.
+     * @param windowPercent Share of the space for the window, from 1 to 100; the starting
+     *        share if the window is adaptive.
+     * @param adaptive Whether the window size adapts to the hit rate.
+     */
+    public TinyLfuCache(int maxSize, int expectedEntries, int windowPercent, boolean adaptive) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (windowPercent < 1 || windowPercent > 100) {
+            throw new IllegalArgumentException("windowPercent must be from 1 to 100");
+        }
+        mMaxSize = maxSize;
+        setWindowMaxSize((int) ((long) maxSize * windowPercent / 100));
+        mAdaptive = adaptive;
+        mSampleLookups = Math.max(MIN_SAMPLE_LOOKUPS, expectedEntries * SAMPLE_LOOKUPS_PER_ENTRY);
+        mStep = Math.max(1, maxSize / INITIAL_STEP_DIVISOR);
+        // Keep history for a few times as many keys as fit, so entries just evicted are remembered.
+        mSketch = new FrequencySketch(Math.max(1, expectedEntries) * 4);
+    }
+
+    /**
+     * Returns the value for a key, or null if it is not cached. Counts towards the key's
+     * frequency either way.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        synchronized (this) {
+            mSketch.increment(key);
+            Node<K, V> node = mMap.get(key);
+            if (node == null) {
+                mMissCount++;
+                mSampleMisses++;
+            } else {
+                mHitCount++;
+                mSampleHits++;
+                onAccess(node);
+            }
+            if (mAdaptive && mSampleHits + mSampleMisses >= mSampleLookups) {
+                climb();
+            }
+            return node != null ? node.value : null;
+        }
+    }
+
+    /**
+     * Caches a value. A new key goes into the window; whether it stays once the window is
+     * full depends on its frequency.
+     * @return The previous value for the key, or null.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        List<Removal<K, V>> removals = new ArrayList<Removal<K, V>>();
+        V previous = null;
+        synchronized (this) {
+            mPutCount++;
+            int size = safeSizeOf(key, value);
+            Node<K, V> node = mMap.get(key);
+            if (node != null) {
+                previous = node.value;
+                removals.add(new Removal<K, V>(false, key, previous, value));
+                Segment<K, V> segment = segmentOf(node);
+                segment.remove(node);
+                node.value = value;
+                node.size = size;
+                segment.addLast(node);
+                onAccess(node);
+            } else if (size <= mMaxSize) {
+                node = new Node<K, V>(key, value, size);
+                node.segment = WINDOW;
+                mMap.put(key, node);
+                mWindow.addLast(node);
+            }
+            evict(removals);
+        }
+        report(removals);
+        return previous;
+    }
+
+    /**
+     * Removes a key.
+     * @return The value it had, or null.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        V previous = null;
+        synchronized (this) {
+            Node<K, V> node = mMap.remove(key);
+            if (node != null) {
+                segmentOf(node).remove(node);
+                previous = node.value;
+            }
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    /**
+     * Evicts entries until they add up to no more than {@code maxSize}: entries on probation
+     * first, then the window, then protected entries, least recently used first in each.
+     */
+    public void trimToSize(int maxSize) {
+        List<Removal<K, V>> removals = new ArrayList<Removal<K, V>>();
+        synchronized (this) {
+            while (size() > maxSize && mProbation.head != null) {
+                evictNode(mProbation.head, removals);
+            }
+            while (size() > maxSize && mWindow.head != null) {
+                evictNode(mWindow.head, removals);
+            }
+            while (size() > maxSize && mProtected.head != null) {
+                evictNode(mProtected.head, removals);
+            }
+        }
+        report(removals);
+    }
+
+    /**
+     * Evicts every entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * Moves the window size one step towards a better hit rate. Entries that no longer fit
+     * are moved or evicted by the next put.
+     */
+    private void climb() {
+        double hitRate = (double) mSampleHits / (mSampleHits + mSampleMisses);
+        if (mPreviousHitRate >= 0 && hitRate < mPreviousHitRate) {
+            mStep = -mStep;
+        }
+        mPreviousHitRate = hitRate;
+        mSampleHits = 0;
+        mSampleMisses = 0;
+        setWindowMaxSize(Math.max(0, Math.min(mMaxSize, mWindowMaxSize + mStep)));
+        int minStep = Math.max(1, mMaxSize / MIN_STEP_DIVISOR);
+        int step = (int) ((long) Math.abs(mStep) * STEP_DECAY_PERCENT / 100);
+        mStep = Integer.signum(mStep) * Math.max(minStep, step);
+    }
+
+    private void setWindowMaxSize(int windowMaxSize) {
+        mWindowMaxSize = windowMaxSize;
+        mProtectedMaxSize = (int) ((long) (mMaxSize - windowMaxSize) * PROTECTED_PERCENT / 100);
+    }
+
+    /**
+     * Moves an entry that was just used towards the protected segment.
+     */
+    private void onAccess(Node<K, V> node) {
+        Segment<K, V> segment = segmentOf(node);
+        segment.remove(node);
+        if (node.segment == PROBATION) {
+            // Used again since it was admitted; protect it, and make room by putting the least
+            // recently used protected entries back on probation.
+            node.segment = PROTECTED;
+            mProtected.addLast(node);
+            while (mProtected.size > mProtectedMaxSize && mProtected.head != node) {
+                Node<K, V> demoted = mProtected.head;
+                mProtected.remove(demoted);
+                demoted.segment = PROBATION;
+                mProbation.addLast(demoted);
+            }
+        } else {
+            segment.addLast(node);
+        }
+    }
+
+    /**
+     * Moves entries out of an overflowing window, admitting or rejecting each. The newest
+     * entry always stays, even if it alone is bigger than the window, so it gets the chance
+     * to be used again before it has to win against the entries already cached.
+     */
+    private void evict(List<Removal<K, V>> removals) {
+        while (mWindow.size > mWindowMaxSize && mWindow.head != mWindow.tail) {
+            Node<K, V> candidate = mWindow.head;
+            mWindow.remove(candidate);
+            candidate.segment = PROBATION;
+            mProbation.addLast(candidate);
+            admit(candidate, removals);
+        }
+        // A bigger window leaves less room for the rest, and an entry replaced by a bigger
+        // value may have overfilled the cache.
+        while (mainSize() > mMaxSize - mWindowMaxSize && mProbation.head != null) {
+            evictNode(mProbation.head, removals);
+        }
+        while (size() > mMaxSize) {
+            Node<K, V> victim = mProbation.head;
+            if (victim == null) {
+                victim = mProtected.head;
+            }
+            if (victim == null) {
+                victim = mWindow.head;
+            }
+            evictNode(victim, removals);
+        }
+    }
+
+    /**
+     * Keeps a candidate just moved to probation unless an entry that has to go to make room
+     * for it is requested more often. A tie goes to the candidate, since it is the more
+     * recent of the two.
+     */
+    private void admit(Node<K, V> candidate, List<Removal<K, V>> removals) {
+        int mainMaxSize = mMaxSize - mWindowMaxSize;
+        int candidateFrequency = mSketch.frequency(candidate.key);
+        while (mainSize() > mainMaxSize) {
+            Node<K, V> victim = mProbation.head;
+            if (victim == candidate) {
+                // Nothing else on probation; protected entries outrank it.
+                victim = mProtected.head;
+                if (victim == null) {
+                    break;
+                }
+            }
+            if (candidateFrequency < mSketch.frequency(victim.key)) {
+                mRejectionCount++;
+                evictNode(candidate, removals);
+                return;
+            }
+            evictNode(victim, removals);
+        }
+    }
+
+    private void evictNode(Node<K, V> node, List<Removal<K, V>> removals) {
+        segmentOf(node).remove(node);
+        mMap.remove(node.key);
+        mEvictionCount++;
+        removals.add(new Removal<K, V>(true, node.key, node.value, null));
+    }
+
+    private void report(List<Removal<K, V>> removals) {
+        for (Removal<K, V> removal : removals) {
+            entryRemoved(removal.evicted, removal.key, removal.oldValue, removal.newValue);
+        }
+    }
+
+    private Segment<K, V> segmentOf(Node<K, V> node) {
+        switch (node.segment) {
+            case WINDOW:
+                return mWindow;
+            case PROBATION:
+                return mProbation;
+            default:
+                return mProtected;
+        }
+    }
+
+    private int mainSize() {
+        return mProbation.size + mProtected.size;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int size = sizeOf(key, value);
+        if (size < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the size of an entry, 1 by default so the cache counts entries.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Called for every entry that is evicted, removed or replaced, without the lock held.
+     * @param evicted True if it was evicted to make room, false if it was removed or replaced.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    /**
+     * Returns the sum of the sizes of the entries.
+     */
+    public synchronized final int size() {
+        return mWindow.size + mainSize();
+    }
+
+    public synchronized final int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized final int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized final int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized final int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized final int evictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Returns the space currently set aside for the window.
+     */
+    public synchronized final int windowMaxSize() {
+        return mWindowMaxSize;
+    }
+
+    /**
+     * Returns the number of new entries evicted because they were requested less often than
+     * the entries they would have replaced.
+     */
+    public synchronized final int rejectionCount() {
+        return mRejectionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("TinyLfuCache[maxSize=%d,windowMaxSize=%d,window=%d,probation=%d,protected=%d,hits=%d,misses=%d,hitRate=%d%%,rejections=%d]",
+                mMaxSize, mWindowMaxSize, mWindow.size, mProbation.size, mProtected.size,
+                mHitCount, mMissCount, hitPercent, mRejectionCount);
+    }
+}
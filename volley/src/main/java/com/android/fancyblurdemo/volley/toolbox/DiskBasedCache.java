@@ -21,6 +21,8 @@ import android.os.SystemClock;
 import com.android.fancyblurdemo.volley.Cache;
 import com.android.fancyblurdemo.volley.VolleyLog;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -29,24 +31,58 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
  * directory. The default disk usage size is 5MB, but is configurable.
+ *
+ * Safe for concurrent use without a cache-wide lock. Each key's file is guarded by one of
+ * {@link #LOCK_STRIPES} locks, chosen by file name, so reads and writes of keys on different
+ * stripes run in parallel and only keys that share a stripe wait for each other. The index
+ * is a concurrent map; least recently used order is kept as an access sequence number per
+ * entry and only sorted when the cache is pruned. Pruning happens after a put, outside the
+ * put's lock, and takes each victim's lock in turn. {@link #clear()} and
+ * {@link #initialize()} take every lock.
+ *
+ * Every put and remove is also appended to a {@link DiskBasedCacheJournal} in the root
+ * directory, so {@link #initialize()} reads one file instead of the header of every cached
+ * file. It only reads the headers of files the journal does not know about, and scans every
+ * file when the journal is missing or corrupt. Reads only bump a counter, so readers never
+ * wait on the journal. Like pruning, compacting the journal happens after the key's lock is
+ * released, on one thread at a time.
  */
 public class DiskBasedCache implements Cache {
 
-    /** Map of the Key, CacheHeader pairs */
-    private final Map<String, CacheHeader> mEntries =
-            new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+    /** Number of locks the keys are spread over; a power of two. */
+    private static final int LOCK_STRIPES = 16;
+
+    /** Map of the Key, CacheHeader pairs. Changed only under the key's lock. */
+    private final Map<String, CacheHeader> mEntries = new ConcurrentHashMap<String, CacheHeader>(16, .75f, LOCK_STRIPES);
+
+    /** Locks guarding the files and index entries of the keys, chosen by file name. */
+    private final ReentrantLock[] mLocks = new ReentrantLock[LOCK_STRIPES];
+
+    /** Held while pruning, so only one thread prunes at a time. */
+    private final ReentrantLock mPruneLock = new ReentrantLock();
+
+    /** Source of access sequence numbers, which order the entries for pruning. */
+    private final AtomicLong mAccessSequence = new AtomicLong();
 
     /** Total amount of space currently used by the cache in bytes. */
-    private long mTotalSize = 0;
+    private final AtomicLong mTotalSize = new AtomicLong();
 
     /** The root directory to use for the cache. */
     private final File mRootDirectory;
@@ -54,15 +90,24 @@ public class DiskBasedCache implements Cache {
     /** The maximum size of the cache in bytes. */
     private final int mMaxCacheSizeInBytes;
 
+    /** The on-disk index. Appended to while holding the changed key's lock. */
+    private final DiskBasedCacheJournal mJournal;
+
     /** Default maximum disk usage in bytes. */
     private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
 
     /** High water mark percentage for the cache */
     private static final float HYSTERESIS_FACTOR = 0.9f;
 
-    /** Magic number for current version of cache file format. */
+    /** Magic number for the first version of the cache file format, read field by field. */
     private static final int CACHE_MAGIC = 0x20120504;
 
+    /**
+     * Magic number for the current version of the cache file format, whose header is one
+     * length-prefixed block. Files in the first version are rewritten when next read.
+     */
+    private static final int CACHE_MAGIC_V2 = 0x20140525;
+
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
      * @param rootDirectory The root directory of the cache.
@@ -71,6 +116,10 @@ public class DiskBasedCache implements Cache {
     public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
         mRootDirectory = rootDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mJournal = new DiskBasedCacheJournal(rootDirectory, mEntries.values());
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mLocks[i] = new ReentrantLock();
+        }
     }
 
     /**
@@ -86,15 +135,25 @@ public class DiskBasedCache implements Cache {
      * Clears the cache. Deletes all cached files from disk.
      */
     @Override
-    public synchronized void clear() {
-        File[] files = mRootDirectory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                file.delete();
+    public void clear() {
+        lockAll();
+        try {
+            mJournal.delete();
+            File[] files = mRootDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
             }
+            mEntries.clear();
+            mTotalSize.set(0);
+            if (mRootDirectory.exists()) {
+                // Start a new, empty journal.
+                mJournal.compact();
+            }
+        } finally {
+            unlockAll();
         }
-        mEntries.clear();
-        mTotalSize = 0;
         VolleyLog.d("Cache cleared.");
     }
 
@@ -102,23 +161,48 @@ public class DiskBasedCache implements Cache {
      * Returns the cache entry with the specified key if it exists, null otherwise.
      */
     @Override
-    public synchronized Entry get(String key) {
+    public Entry get(String key) {
+        ReentrantLock lock = getLockForKey(key);
+        lock.lock();
+        Entry entry;
+        try {
+            entry = getLocked(key);
+        } finally {
+            lock.unlock();
+        }
+        mJournal.compactIfNeeded();
+        return entry;
+    }
+
+    /**
+     * Reads an entry. Must hold the key's lock.
+     */
+    private Entry getLocked(String key) {
         CacheHeader entry = mEntries.get(key);
         // if the entry does not exist, return.
         if (entry == null) {
             return null;
         }
+        entry.lastAccess = mAccessSequence.incrementAndGet();
+        mJournal.noteRead();
 
         File file = getFileForKey(key);
         CountingInputStream cis = null;
         try {
             cis = new CountingInputStream(new FileInputStream(file));
-            CacheHeader.readHeader(cis); // eat header
+            CacheHeader header = CacheHeader.readHeader(cis);
             byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
+            Entry result = entry.toCacheEntry(data);
+            if (header.oldFormat) {
+                cis.close();
+                cis = null;
+                // Rewrite it in the current format while we have it.
+                putLocked(key, result);
+            }
+            return result;
         } catch (IOException e) {
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
+            removeLocked(key);
             return null;
         } finally {
             if (cis != null) {
@@ -132,33 +216,91 @@ public class DiskBasedCache implements Cache {
     }
 
     /**
-     * Initializes the DiskBasedCache by scanning for all files currently in the
-     * specified root directory. Creates the root directory if necessary.
+     * Initializes the DiskBasedCache from its journal, or by scanning for all files
+     * currently in the specified root directory if there is no usable journal. Creates
+     * the root directory if necessary.
      */
     @Override
-    public synchronized void initialize() {
+    public void initialize() {
+        lockAll();
+        try {
+            initializeLocked();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Loads the journal, or scans the root directory. Must hold every lock.
+     */
+    private void initializeLocked() {
         if (!mRootDirectory.exists()) {
             if (!mRootDirectory.mkdirs()) {
                 VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+                return;
             }
+            mJournal.compact();
             return;
         }
 
-        File[] files = mRootDirectory.listFiles();
-        if (files == null) {
+        String[] names = mRootDirectory.list();
+        if (names == null) {
+            return;
+        }
+        Map<String, CacheHeader> journalEntries = new HashMap<String, CacheHeader>();
+        int records = mJournal.load(journalEntries);
+        if (records < 0) {
+            scanLocked(Arrays.asList(names));
+            mJournal.compact();
             return;
         }
-        for (File file : files) {
+
+        // The journal can disagree with the directory if the process died between writing
+        // or deleting a file and recording it, or if the journal was cut short. Trust the
+        // directory for which files exist, and scan any file the journal does not know.
+        Set<String> unknown = new HashSet<String>(Arrays.asList(names));
+        unknown.remove(DiskBasedCacheJournal.JOURNAL_FILE);
+        unknown.remove(DiskBasedCacheJournal.JOURNAL_FILE_TMP);
+        boolean changed = false;
+        for (CacheHeader entry : journalEntries.values()) {
+            if (unknown.remove(getFilenameForKey(entry.key))) {
+                putEntry(entry.key, entry);
+            } else {
+                changed = true;
+            }
+        }
+        changed |= !unknown.isEmpty();
+        // The journal numbered the accesses it recorded; carry on from there. Scanned files
+        // come before any of them.
+        mAccessSequence.set(records);
+        scanLocked(unknown);
+        if (changed || mJournal.needsCompaction()) {
+            mJournal.compact();
+        } else {
+            mJournal.openForAppend();
+        }
+    }
+
+    /**
+     * Reads the header of each of the named files in the root directory, and deletes those
+     * that are not cache files. Must hold every lock.
+     */
+    private void scanLocked(Collection<String> names) {
+        for (String name : names) {
+            if (DiskBasedCacheJournal.isJournalFile(name)) {
+                continue;
+            }
+            File file = new File(mRootDirectory, name);
             FileInputStream fis = null;
             try {
                 fis = new FileInputStream(file);
                 CacheHeader entry = CacheHeader.readHeader(fis);
                 entry.size = file.length();
+                // Oldest first, in the order the files were last written.
+                entry.lastAccess = file.lastModified() - Long.MAX_VALUE / 2;
                 putEntry(entry.key, entry);
             } catch (IOException e) {
-                if (file != null) {
-                   file.delete();
-                }
+                file.delete();
             } finally {
                 try {
                     if (fis != null) {
@@ -175,24 +317,45 @@ public class DiskBasedCache implements Cache {
      * @param fullExpire True to fully expire the entry, false to soft expire
      */
     @Override
-    public synchronized void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
+    public void invalidate(String key, boolean fullExpire) {
+        ReentrantLock lock = getLockForKey(key);
+        lock.lock();
+        try {
+            Entry entry = getLocked(key);
+            if (entry != null) {
+                entry.softTtl = 0;
+                if (fullExpire) {
+                    entry.ttl = 0;
+                }
+                putLocked(key, entry);
             }
-            put(key, entry);
+        } finally {
+            lock.unlock();
         }
-
+        pruneIfNeeded();
+        mJournal.compactIfNeeded();
     }
 
     /**
      * Puts the entry with the specified key into the cache.
      */
     @Override
-    public synchronized void put(String key, Entry entry) {
-        pruneIfNeeded(entry.data.length);
+    public void put(String key, Entry entry) {
+        ReentrantLock lock = getLockForKey(key);
+        lock.lock();
+        try {
+            putLocked(key, entry);
+        } finally {
+            lock.unlock();
+        }
+        pruneIfNeeded();
+        mJournal.compactIfNeeded();
+    }
+
+    /**
+     * Writes an entry. Must hold the key's lock.
+     */
+    private void putLocked(String key, Entry entry) {
         File file = getFileForKey(key);
         try {
             FileOutputStream fos = new FileOutputStream(file);
@@ -200,7 +363,9 @@ public class DiskBasedCache implements Cache {
             e.writeHeader(fos);
             fos.write(entry.data);
             fos.close();
+            e.lastAccess = mAccessSequence.incrementAndGet();
             putEntry(key, e);
+            mJournal.appendPut(e);
             return;
         } catch (IOException e) {
         }
@@ -208,15 +373,33 @@ public class DiskBasedCache implements Cache {
         if (!deleted) {
             VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
         }
+        // The old contents, if any, are gone too.
+        removeEntry(key);
+        mJournal.appendRemove(key);
     }
 
     /**
      * Removes the specified key from the cache if it exists.
      */
     @Override
-    public synchronized void remove(String key) {
+    public void remove(String key) {
+        ReentrantLock lock = getLockForKey(key);
+        lock.lock();
+        try {
+            removeLocked(key);
+        } finally {
+            lock.unlock();
+        }
+        mJournal.compactIfNeeded();
+    }
+
+    /**
+     * Removes an entry. Must hold the key's lock.
+     */
+    private void removeLocked(String key) {
         boolean deleted = getFileForKey(key).delete();
         removeEntry(key);
+        mJournal.appendRemove(key);
         if (!deleted) {
             VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
                     key, getFilenameForKey(key));
@@ -243,69 +426,139 @@ public class DiskBasedCache implements Cache {
     }
 
     /**
-     * Prunes the cache to fit the amount of bytes specified.
-     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     * Returns the lock guarding a key. Keys are spread by file name, so two keys that
+     * happen to share a file also share a lock.
+     */
+    private ReentrantLock getLockForKey(String key) {
+        int hash = getFilenameForKey(key).hashCode();
+        hash ^= (hash >>> 16);
+        return mLocks[hash & (LOCK_STRIPES - 1)];
+    }
+
+    private void lockAll() {
+        // Always in the same order, so two threads taking every lock cannot deadlock.
+        for (ReentrantLock lock : mLocks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = LOCK_STRIPES - 1; i >= 0; i--) {
+            mLocks[i].unlock();
+        }
+    }
+
+    /**
+     * Prunes the least recently used entries if the cache has grown past its maximum size,
+     * until it is back under the high water mark. Must not hold any key's lock. If another
+     * thread is already pruning, leaves it to that thread.
      */
-    private void pruneIfNeeded(int neededSpace) {
-        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
+    private void pruneIfNeeded() {
+        if (mTotalSize.get() < mMaxCacheSizeInBytes || !mPruneLock.tryLock()) {
             return;
         }
+        try {
+            prune();
+        } finally {
+            mPruneLock.unlock();
+        }
+    }
+
+    /**
+     * Prunes the cache. Must hold {@link #mPruneLock}.
+     */
+    private void prune() {
         if (VolleyLog.DEBUG) {
             VolleyLog.v("Pruning old cache entries.");
         }
 
-        long before = mTotalSize;
+        long before = mTotalSize.get();
         int prunedFiles = 0;
         long startTime = SystemClock.elapsedRealtime();
 
-        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
-            } else {
-               VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                       e.key, getFilenameForKey(e.key));
-            }
-            iterator.remove();
-            prunedFiles++;
-
-            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+        for (CacheHeader e : sortByLastAccess(mEntries.values())) {
+            if (mTotalSize.get() < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
                 break;
             }
+            ReentrantLock lock = getLockForKey(e.key);
+            lock.lock();
+            try {
+                if (mEntries.get(e.key) != e) {
+                    // Rewritten or removed since the snapshot; leave it.
+                    continue;
+                }
+                boolean deleted = getFileForKey(e.key).delete();
+                if (!deleted) {
+                    VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                            e.key, getFilenameForKey(e.key));
+                }
+                removeEntry(e.key);
+                mJournal.appendRemove(e.key);
+                prunedFiles++;
+            } finally {
+                lock.unlock();
+            }
         }
 
         if (VolleyLog.DEBUG) {
             VolleyLog.v("pruned %d files, %d bytes, %d ms",
-                    prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+                    prunedFiles, (mTotalSize.get() - before), SystemClock.elapsedRealtime() - startTime);
         }
     }
 
     /**
-     * Puts the entry with the specified key into the cache.
+     * Returns the entries least recently used first. Readers on other stripes keep changing
+     * {@code lastAccess}, and a sort whose keys change under it can fail, so each entry's is
+     * copied before sorting.
+     */
+    static List<CacheHeader> sortByLastAccess(Collection<CacheHeader> headers) {
+        List<AccessOrder> order = new ArrayList<AccessOrder>(headers.size());
+        for (CacheHeader header : headers) {
+            order.add(new AccessOrder(header));
+        }
+        Collections.sort(order);
+        List<CacheHeader> sorted = new ArrayList<CacheHeader>(order.size());
+        for (AccessOrder entry : order) {
+            sorted.add(entry.header);
+        }
+        return sorted;
+    }
+
+    /**
+     * An entry and its access sequence number at one moment.
+     */
+    private static class AccessOrder implements Comparable<AccessOrder> {
+        private final CacheHeader header;
+        private final long lastAccess;
+
+        private AccessOrder(CacheHeader header) {
+            this.header = header;
+            this.lastAccess = header.lastAccess;
+        }
+
+        @Override
+        public int compareTo(AccessOrder other) {
+            return lastAccess < other.lastAccess ? -1 : (lastAccess == other.lastAccess ? 0 : 1);
+        }
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache. Must hold the key's lock.
      * @param key The key to identify the entry by.
      * @param entry The entry to cache.
      */
     private void putEntry(String key, CacheHeader entry) {
-        if (!mEntries.containsKey(key)) {
-            mTotalSize += entry.size;
-        } else {
-            CacheHeader oldEntry = mEntries.get(key);
-            mTotalSize += (entry.size - oldEntry.size);
-        }
-        mEntries.put(key, entry);
+        CacheHeader oldEntry = mEntries.put(key, entry);
+        mTotalSize.addAndGet(entry.size - (oldEntry != null ? oldEntry.size : 0));
     }
 
     /**
-     * Removes the entry identified by 'key' from the cache.
+     * Removes the entry identified by 'key' from the cache. Must hold the key's lock.
      */
     private void removeEntry(String key) {
-        CacheHeader entry = mEntries.get(key);
+        CacheHeader entry = mEntries.remove(key);
         if (entry != null) {
-            mTotalSize -= entry.size;
-            mEntries.remove(key);
+            mTotalSize.addAndGet(-entry.size);
         }
     }
 
@@ -352,6 +605,14 @@ public class DiskBasedCache implements Cache {
         /** Headers from the response resulting in this cache entry. */
         public Map<String, String> responseHeaders;
 
+        /** When this entry was last read or written, as an access sequence number. (This is
+         * not serialized to disk.) */
+        public volatile long lastAccess;
+
+        /** True if this header was read in the first version of the format. (This is not
+         * serialized to disk.) */
+        public boolean oldFormat;
+
         private CacheHeader() { }
 
         /**
@@ -370,17 +631,38 @@ public class DiskBasedCache implements Cache {
         }
 
         /**
-         * Reads the header off of an InputStream and returns a CacheHeader object.
+         * Reads the header off of an InputStream and returns a CacheHeader object. Reads
+         * both versions of the format; the current one in three reads, however unbuffered
+         * the stream.
          * @param is The InputStream to read from.
          * @throws java.io.IOException
          */
         public static CacheHeader readHeader(InputStream is) throws IOException {
-            CacheHeader entry = new CacheHeader();
-            int magic = readInt(is);
-            if (magic != CACHE_MAGIC) {
+            byte[] prefix = streamToBytes(is, 8);
+            InputStream prefixStream = new ByteArrayInputStream(prefix);
+            int magic = readInt(prefixStream);
+            if (magic == CACHE_MAGIC) {
+                // The rest of the prefix is the start of the key.
+                CacheHeader entry = readFields(new SequenceInputStream(prefixStream, is));
+                entry.oldFormat = true;
+                return entry;
+            }
+            if (magic != CACHE_MAGIC_V2) {
                 // don't bother deleting, it'll get pruned eventually
                 throw new IOException();
             }
+            int length = readInt(prefixStream);
+            if (length < 0 || length > is.available()) {
+                throw new EOFException();
+            }
+            return readFields(new ByteArrayInputStream(streamToBytes(is, length)));
+        }
+
+        /**
+         * Reads the fields of a header, after its magic number.
+         */
+        private static CacheHeader readFields(InputStream is) throws IOException {
+            CacheHeader entry = new CacheHeader();
             entry.key = readString(is);
             entry.etag = readString(is);
             if (entry.etag.equals("")) {
@@ -409,17 +691,23 @@ public class DiskBasedCache implements Cache {
 
 
         /**
-         * Writes the contents of this CacheHeader to the specified OutputStream.
+         * Writes the contents of this CacheHeader to the specified OutputStream, in the
+         * current format and in a single write.
          */
         public boolean writeHeader(OutputStream os) {
             try {
-                writeInt(os, CACHE_MAGIC);
-                writeString(os, key);
-                writeString(os, etag == null ? "" : etag);
-                writeLong(os, serverDate);
-                writeLong(os, ttl);
-                writeLong(os, softTtl);
-                writeStringStringMap(responseHeaders, os);
+                ByteArrayOutputStream fields = new ByteArrayOutputStream(256);
+                writeString(fields, key);
+                writeString(fields, etag == null ? "" : etag);
+                writeLong(fields, serverDate);
+                writeLong(fields, ttl);
+                writeLong(fields, softTtl);
+                writeStringStringMap(responseHeaders, fields);
+                ByteArrayOutputStream header = new ByteArrayOutputStream(8 + fields.size());
+                writeInt(header, CACHE_MAGIC_V2);
+                writeInt(header, fields.size());
+                fields.writeTo(header);
+                header.writeTo(os);
                 os.flush();
                 return true;
             } catch (IOException e) {
@@ -522,8 +810,12 @@ public class DiskBasedCache implements Cache {
     }
 
     static String readString(InputStream is) throws IOException {
-        int n = (int) readLong(is);
-        byte[] b = streamToBytes(is, n);
+        long n = readLong(is);
+        if (n < 0 || n > is.available()) {
+            // A truncated or corrupt length; don't allocate it.
+            throw new EOFException();
+        }
+        byte[] b = streamToBytes(is, (int) n);
         return new String(b, "UTF-8");
     }
 
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fancyblurdemo.volley.toolbox;
+
+import com.android.fancyblurdemo.volley.VolleyLog;
+import com.android.fancyblurdemo.volley.toolbox.DiskBasedCache.CacheHeader;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The on-disk index of a {@link DiskBasedCache}, so it can start without opening every
+ * cache file.
+ *
+ * The journal starts with a snapshot of every entry's header and size, least recently used
+ * first, followed by a record for every put and remove since. Loading it is one sequential
+ * read. Reads are not recorded, since that would make every reader of the cache wait on
+ * the journal; they are only counted, and the order they leave the entries in is saved
+ * with the next snapshot. Once the records or the reads outnumber the entries by enough,
+ * the journal is compacted: a new snapshot is written to a temporary file and renamed over
+ * it.
+ *
+ * Records are written whole and flushed to the file system straight away. If the process
+ * dies part way through a record, loading stops at the last whole record and the journal
+ * is compacted before anything is appended. Anything else that does not parse makes
+ * {@link #load} fail, so the cache falls back to scanning its files. If writing fails, the
+ * journal is deleted and stops recording, so the next start scans too.
+ *
+ * Thread safe. Callers append while holding the key's lock, so the records of each key are
+ * in the order it changed; the journal never takes a key's lock. Appending only holds the
+ * journal's monitor for the write of one record. Compacting must be done without holding
+ * any key's lock, and only one thread compacts at a time; records appended while the
+ * snapshot is written go to the old journal and are kept to be added to the new one, so a
+ * crash part way through leaves the old journal whole.
+ */
+class DiskBasedCacheJournal {
+
+    /** Name of the journal in the cache directory. Never a cache file name, which is digits. */
+    static final String JOURNAL_FILE = "volley-journal";
+
+    /** Name of the snapshot while it is being written. */
+    static final String JOURNAL_FILE_TMP = "volley-journal.tmp";
+
+    /** Magic number and version at the start of the journal. */
+    private static final int JOURNAL_MAGIC = 0x564a524e;
+    private static final int JOURNAL_VERSION = 2;
+
+    /** Record types. */
+    private static final int RECORD_PUT = 'P';
+    private static final int RECORD_REMOVE = 'R';
+
+    /** Fewest records, or reads, before the journal is compacted. */
+    private static final int MIN_COMPACT_RECORDS = 2000;
+
+    private final File mFile;
+    private final File mTmpFile;
+
+    /** The cache's live entries, written out as the snapshot when compacting. */
+    private final Collection<CacheHeader> mEntries;
+
+    /** Held while compacting, deleting or loading, so only one thread does at a time. */
+    private final ReentrantLock mCompactLock = new ReentrantLock();
+
+    /** Reads since the last snapshot. Counted without any lock. */
+    private final AtomicInteger mReads = new AtomicInteger();
+
+    /** Appends to the journal, or null if it is not open. Changed only under this. */
+    private volatile OutputStream mOut;
+
+    /** Records in the journal, including the snapshot. Changed only under this. */
+    private volatile int mRecordCount = 0;
+
+    /** Records in {@link #mPending}. Guarded by this. */
+    private int mPendingCount = 0;
+
+    /** Records appended while a snapshot is written, or null if none is. Guarded by this. */
+    private ByteArrayOutputStream mPending;
+
+    /** True if the journal ends in a partial record or is otherwise due a rewrite. */
+    private volatile boolean mNeedsCompaction = false;
+
+    /** Builds each record, so it is written in one piece. Guarded by this. */
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream(256);
+
+    /**
+     * @param directory The cache directory.
+     * @param entries The cache's live entries; a view that follows changes to the cache.
+     */
+    DiskBasedCacheJournal(File directory, Collection<CacheHeader> entries) {
+        mFile = new File(directory, JOURNAL_FILE);
+        mTmpFile = new File(directory, JOURNAL_FILE_TMP);
+        mEntries = entries;
+    }
+
+    /**
+     * Returns true if a file in the cache directory belongs to the journal.
+     */
+    static boolean isJournalFile(String name) {
+        return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TMP.equals(name);
+    }
+
+    /**
+     * Reads the journal into {@code entries}. Each entry's {@code lastAccess} is the number
+     * of the last record that put it, so older entries sort first.
+     * @return The number of records read, or -1 if there is no journal or it is corrupt, in
+     *         which case {@code entries} may hold part of it.
+     */
+    int load(Map<String, CacheHeader> entries) {
+        mCompactLock.lock();
+        try {
+            return loadLocked(entries);
+        } finally {
+            mCompactLock.unlock();
+        }
+    }
+
+    private int loadLocked(Map<String, CacheHeader> entries) {
+        byte[] bytes;
+        try {
+            bytes = readFully(mFile);
+        } catch (FileNotFoundException e) {
+            return -1;
+        } catch (IOException e) {
+            VolleyLog.d("Unable to read cache journal: %s", e.toString());
+            return -1;
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        int records = 0;
+        try {
+            if (DiskBasedCache.readInt(in) != JOURNAL_MAGIC || DiskBasedCache.readInt(in) != JOURNAL_VERSION) {
+                VolleyLog.d("Cache journal has an unknown format");
+                return -1;
+            }
+            int type;
+            while ((type = in.read()) != -1) {
+                if (type == RECORD_PUT) {
+                    long size = DiskBasedCache.readLong(in);
+                    CacheHeader header = CacheHeader.readHeader(in);
+                    header.size = size;
+                    header.lastAccess = records;
+                    entries.put(header.key, header);
+                } else if (type == RECORD_REMOVE) {
+                    entries.remove(DiskBasedCache.readString(in));
+                } else {
+                    VolleyLog.d("Cache journal has an unknown record %d", type);
+                    return -1;
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            // Cut short part way through a record; keep what came before it.
+            mNeedsCompaction = true;
+        } catch (IOException e) {
+            VolleyLog.d("Cache journal is corrupt: %s", e.toString());
+            return -1;
+        }
+        mRecordCount = records;
+        return records;
+    }
+
+    /**
+     * Returns true if the journal is due to be compacted: it ends in a partial record, or
+     * it is open and the records or reads since the last snapshot outnumber the entries by
+     * enough. Takes no lock.
+     */
+    boolean needsCompaction() {
+        if (mNeedsCompaction) {
+            return true;
+        }
+        if (mOut == null) {
+            return false;
+        }
+        int threshold = Math.max(MIN_COMPACT_RECORDS, mEntries.size() * 2);
+        return mRecordCount > threshold || mReads.get() > threshold;
+    }
+
+    /**
+     * Starts appending to the journal as loaded.
+     */
+    synchronized void openForAppend() {
+        try {
+            mOut = new BufferedOutputStream(new FileOutputStream(mFile, true));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records a put of an entry.
+     */
+    synchronized void appendPut(CacheHeader header) {
+        if (mOut == null && mPending == null) {
+            return;
+        }
+        mRecord.reset();
+        mRecord.write(RECORD_PUT);
+        if (!writePut(mRecord, header)) {
+            fail(new IOException("Unable to write header of " + header.key));
+            return;
+        }
+        append();
+    }
+
+    /**
+     * Records a removal of a key.
+     */
+    synchronized void appendRemove(String key) {
+        if (mOut == null && mPending == null) {
+            return;
+        }
+        mRecord.reset();
+        mRecord.write(RECORD_REMOVE);
+        try {
+            DiskBasedCache.writeString(mRecord, key);
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        append();
+    }
+
+    /**
+     * Counts a read. Takes no lock.
+     */
+    void noteRead() {
+        mReads.incrementAndGet();
+    }
+
+    /**
+     * Appends {@link #mRecord}, and keeps it for the new journal if a snapshot is being
+     * written. Kept even if the old journal has failed, since the new one replaces it.
+     */
+    private void append() {
+        if (mPending != null) {
+            mPending.write(mRecord.toByteArray(), 0, mRecord.size());
+            mPendingCount++;
+        }
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mRecord.writeTo(mOut);
+            mOut.flush();
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        mRecordCount++;
+    }
+
+    /**
+     * Compacts the journal if it is due, unless another thread is compacting already. Must
+     * not hold any key's lock.
+     */
+    void compactIfNeeded() {
+        if (!needsCompaction() || !mCompactLock.tryLock()) {
+            return;
+        }
+        try {
+            if (needsCompaction()) {
+                compactLocked();
+            }
+        } finally {
+            mCompactLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the journal with a snapshot of the live entries, then keeps appending to it.
+     * Must not hold any key's lock, unless the caller holds them all.
+     */
+    void compact() {
+        mCompactLock.lock();
+        try {
+            compactLocked();
+        } finally {
+            mCompactLock.unlock();
+        }
+    }
+
+    private void compactLocked() {
+        synchronized (this) {
+            mPending = new ByteArrayOutputStream();
+            mPendingCount = 0;
+        }
+        mReads.set(0);
+
+        // Least recently used first, so loading gives the entries back their order.
+        List<CacheHeader> entries = DiskBasedCache.sortByLastAccess(mEntries);
+
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(mTmpFile));
+            ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+            DiskBasedCache.writeInt(record, JOURNAL_MAGIC);
+            DiskBasedCache.writeInt(record, JOURNAL_VERSION);
+            record.writeTo(out);
+            for (CacheHeader header : entries) {
+                record.reset();
+                record.write(RECORD_PUT);
+                if (!writePut(record, header)) {
+                    throw new IOException("Unable to write header of " + header.key);
+                }
+                record.writeTo(out);
+            }
+
+            synchronized (this) {
+                // Whatever was appended meanwhile comes after the snapshot, which may or may
+                // not have seen it; replaying a put or remove twice gives the same index.
+                mPending.writeTo(out);
+                out.close();
+                out = null;
+                closeQuietly();
+                if (!mTmpFile.renameTo(mFile)) {
+                    throw new IOException("Unable to rename " + mTmpFile);
+                }
+                mRecordCount = entries.size() + mPendingCount;
+                mPending = null;
+                mNeedsCompaction = false;
+                mOut = new BufferedOutputStream(new FileOutputStream(mFile, true));
+            }
+        } catch (IOException e) {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) { }
+            }
+            synchronized (this) {
+                mPending = null;
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Closes the journal and deletes it, for example because the cache was cleared.
+     */
+    void delete() {
+        mCompactLock.lock();
+        try {
+            synchronized (this) {
+                deleteLocked();
+            }
+        } finally {
+            mCompactLock.unlock();
+        }
+    }
+
+    private void deleteLocked() {
+        closeQuietly();
+        mFile.delete();
+        mTmpFile.delete();
+        mRecordCount = 0;
+        mReads.set(0);
+        mNeedsCompaction = false;
+    }
+
+    /**
+     * Stops recording and deletes the journal, so the next start scans the cache files.
+     * Must hold this.
+     */
+    private void fail(IOException e) {
+        VolleyLog.e("Cache journal disabled: %s", e.toString());
+        deleteLocked();
+    }
+
+    private void closeQuietly() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException ignored) { }
+            mOut = null;
+        }
+    }
+
+    private static boolean writePut(OutputStream out, CacheHeader header) {
+        try {
+            DiskBasedCache.writeLong(out, header.size);
+        } catch (IOException e) {
+            return false;
+        }
+        return header.writeHeader(out);
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Journal too large: " + length);
+            }
+            byte[] bytes = new byte[(int) length];
+            new DataInputStream(fis).readFully(bytes);
+            return bytes;
+        } finally {
+            fis.close();
+        }
+    }
+}